@@ -1,5 +1,6 @@
 package com.bergerkiller.bukkit.common.regionflagtracker;
 
+import org.bukkit.entity.Entity;
 import org.bukkit.plugin.Plugin;
 
 /**
@@ -7,8 +8,8 @@ import org.bukkit.plugin.Plugin;
  * region flag is used, it must be registered with {@link RegionFlagRegistry#register(Plugin, RegionFlag)}
  * inside your {@link Plugin#onLoad()}, like so:
  * <pre>
- * public static final RegionFlag&lt;Integer&gt; MY_NUMBER =
- *         RegionFlag.ofInteger("mynumber");
+ * public static final RegionFlag.OfInteger MY_NUMBER =
+ *         RegionFlag.OfInteger.create("mynumber");
  *
  *{@literal @Override}
  * public void onLoad() {
@@ -20,13 +21,24 @@ import org.bukkit.plugin.Plugin;
  * Afterwards, at any time, the {@link RegionFlagTracker} can be obtained for a Player for this
  * flag. The tracker has a
  * {@link RegionFlagTracker#addListener(RegionFlagTracker.ChangeListener) listener API} to
- * automatically receive value changes of this flag.
+ * automatically receive value changes of this flag.<br>
+ * <br>
+ * Flags of the STATE, BOOLEAN, INTEGER and DOUBLE types are created as a specialized
+ * subclass, such as {@link RegionFlag.OfInteger}. Trackers of these flags store the value
+ * as a primitive, and can be read without boxing or allocating an Optional. Use the
+ * {@code create} method of the subclass, such as {@link RegionFlag.OfInteger#create(String)},
+ * to get the flag as the specialized type. Flags created with {@link #ofInteger(String)} and such
+ * are the same specialized type at runtime, and can be cast to it.<br>
+ * <br>
+ * This class can only be extended by this library itself.
  *
  * @param <T> Value type of the region flag
  */
-public final class RegionFlag<T> {
+public class RegionFlag<T> {
     private final String name;
     private final Type type;
+    /** Assigned by the {@link RegionFlagRegistry} while registered, -1 otherwise */
+    int slot = -1;
 
     /**
      * Creates a new RegionFlag for a state flag of the given name.
@@ -34,40 +46,44 @@ public final class RegionFlag<T> {
      * where a default behavior can be chosen.
      *
      * @param name Flag name
-     * @return RegionFlag
+     * @return RegionFlag, a {@link RegionFlag.OfState} at runtime
+     * @see RegionFlag.OfState#create(String)
      */
     public static RegionFlag<State> ofState(String name) {
-        return create(name, Type.STATE);
+        return new OfState(name);
     }
 
     /**
      * Creates a new RegionFlag for an Boolean flag of the given name
      *
      * @param name Flag name
-     * @return RegionFlag
+     * @return RegionFlag, a {@link RegionFlag.OfBoolean} at runtime
+     * @see RegionFlag.OfBoolean#create(String)
      */
     public static RegionFlag<Boolean> ofBoolean(String name) {
-        return create(name, Type.BOOLEAN);
+        return new OfBoolean(name);
     }
 
     /**
      * Creates a new RegionFlag for an Integer flag of the given name
      *
      * @param name Flag name
-     * @return RegionFlag
+     * @return RegionFlag, a {@link RegionFlag.OfInteger} at runtime
+     * @see RegionFlag.OfInteger#create(String)
      */
     public static RegionFlag<Integer> ofInteger(String name) {
-        return create(name, Type.INTEGER);
+        return new OfInteger(name);
     }
 
     /**
      * Creates a new RegionFlag for a Double flag of the given name
      *
      * @param name Flag name
-     * @return RegionFlag
+     * @return RegionFlag, a {@link RegionFlag.OfDouble} at runtime
+     * @see RegionFlag.OfDouble#create(String)
      */
     public static RegionFlag<Double> ofDouble(String name) {
-        return create(name, Type.DOUBLE);
+        return new OfDouble(name);
     }
 
     /**
@@ -80,7 +96,7 @@ public final class RegionFlag<T> {
         return create(name, Type.STRING);
     }
 
-    private RegionFlag(String name, Type type) {
+    RegionFlag(String name, Type type) {
         this.name = name;
         this.type = type;
     }
@@ -103,6 +119,18 @@ public final class RegionFlag<T> {
         return type;
     }
 
+    /**
+     * Creates a new tracker for this flag. Specialized flag types create a
+     * specialized tracker type.
+     *
+     * @param plugin Plugin owner of the flag
+     * @param entity Player or Entity to track
+     * @return new RegionFlagTracker
+     */
+    RegionFlagTracker<T> createTracker(Plugin plugin, Entity entity) {
+        return new RegionFlagTracker<>(plugin, entity, this);
+    }
+
     @Override
     public String toString() {
         return "RegionFlag{name=" + name + ", type=" + type.name() + "}";
@@ -113,6 +141,106 @@ public final class RegionFlag<T> {
         return new RegionFlag<>(name, type);
     }
 
+    /**
+     * A {@link Type#STATE} flag. Trackers of this flag are a {@link RegionFlagTracker.OfState}.
+     */
+    public static final class OfState extends RegionFlag<State> {
+        private OfState(String name) {
+            super(name, Type.STATE);
+        }
+
+        /**
+         * Creates a new state flag of the given name
+         *
+         * @param name Flag name
+         * @return RegionFlag.OfState
+         * @see RegionFlag#ofState(String)
+         */
+        public static OfState create(String name) {
+            return new OfState(name);
+        }
+
+        @Override
+        RegionFlagTracker.OfState createTracker(Plugin plugin, Entity entity) {
+            return new RegionFlagTracker.OfState(plugin, entity, this);
+        }
+    }
+
+    /**
+     * A {@link Type#BOOLEAN} flag. Trackers of this flag are a {@link RegionFlagTracker.OfBoolean}.
+     */
+    public static final class OfBoolean extends RegionFlag<Boolean> {
+        private OfBoolean(String name) {
+            super(name, Type.BOOLEAN);
+        }
+
+        /**
+         * Creates a new Boolean flag of the given name
+         *
+         * @param name Flag name
+         * @return RegionFlag.OfBoolean
+         * @see RegionFlag#ofBoolean(String)
+         */
+        public static OfBoolean create(String name) {
+            return new OfBoolean(name);
+        }
+
+        @Override
+        RegionFlagTracker.OfBoolean createTracker(Plugin plugin, Entity entity) {
+            return new RegionFlagTracker.OfBoolean(plugin, entity, this);
+        }
+    }
+
+    /**
+     * A {@link Type#INTEGER} flag. Trackers of this flag are a {@link RegionFlagTracker.OfInteger}.
+     */
+    public static final class OfInteger extends RegionFlag<Integer> {
+        private OfInteger(String name) {
+            super(name, Type.INTEGER);
+        }
+
+        /**
+         * Creates a new Integer flag of the given name
+         *
+         * @param name Flag name
+         * @return RegionFlag.OfInteger
+         * @see RegionFlag#ofInteger(String)
+         */
+        public static OfInteger create(String name) {
+            return new OfInteger(name);
+        }
+
+        @Override
+        RegionFlagTracker.OfInteger createTracker(Plugin plugin, Entity entity) {
+            return new RegionFlagTracker.OfInteger(plugin, entity, this);
+        }
+    }
+
+    /**
+     * A {@link Type#DOUBLE} flag. Trackers of this flag are a {@link RegionFlagTracker.OfDouble}.
+     */
+    public static final class OfDouble extends RegionFlag<Double> {
+        private OfDouble(String name) {
+            super(name, Type.DOUBLE);
+        }
+
+        /**
+         * Creates a new Double flag of the given name
+         *
+         * @param name Flag name
+         * @return RegionFlag.OfDouble
+         * @see RegionFlag#ofDouble(String)
+         */
+        public static OfDouble create(String name) {
+            return new OfDouble(name);
+        }
+
+        @Override
+        RegionFlagTracker.OfDouble createTracker(Plugin plugin, Entity entity) {
+            return new RegionFlagTracker.OfDouble(plugin, entity, this);
+        }
+    }
+
     /**
      * A permission or behavior toggle. Either ALLOW or DENY.
      */
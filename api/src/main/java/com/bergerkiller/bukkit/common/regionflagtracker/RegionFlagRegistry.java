@@ -1,21 +1,60 @@
 package com.bergerkiller.bukkit.common.regionflagtracker;
 
 import org.bukkit.Bukkit;
+import org.bukkit.Location;
+import org.bukkit.entity.Entity;
 import org.bukkit.entity.Player;
 import org.bukkit.plugin.Plugin;
 
 import java.lang.reflect.Method;
+import java.util.AbstractCollection;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
- * Keeps track of registered region flags and its per-player trackers.
+ * Keeps track of registered region flags and its per-player (or per-entity) trackers.<br>
+ * <br>
+ * Looking up an existing tracker is lock-free and can be done from any thread. Creating
+ * and removing trackers, as well as registering flags, is synchronized on the registry.<br>
+ * <br>
+ * Every registered flag is assigned a slot index. The trackers of a player or entity are stored in
+ * a {@link TrackerTable} indexed by this slot.<br>
+ * <br>
+ * Trackers are only kept up to date while they are observed: while they have listeners,
+ * the flag has global listeners, or the tracker was read recently. Other trackers go dormant
+ * and are woken up again when read.
  */
 public abstract class RegionFlagRegistry {
-    protected final List<RegisteredRegionFlag<?>> registeredFlags = new ArrayList<>();
-    protected final Map<PlayerFlagKey, RegionFlagTracker<?>> trackers = new HashMap<>();
+    /** All registered flags, in registration order. A set, so flags of a disabling plugin are removed cheaply. */
+    protected final Set<RegisteredRegionFlag<?>> registeredFlags = new LinkedHashSet<>();
+    protected final ConcurrentMap<Entity, TrackerTable> trackers = new ConcurrentHashMap<>();
+    /** Registered flags by name, to reject duplicate names without scanning all flags */
+    private final Map<String, RegisteredRegionFlag<?>> registeredFlagsByName = new HashMap<>();
+    /** Registered flags by plugin owner, so disabling a plugin only touches its own flags */
+    private final Map<Plugin, Set<RegisteredRegionFlag<?>>> registeredFlagsByPlugin = new IdentityHashMap<>();
+    private final BitSet usedSlots = new BitSet();
+    /**
+     * Registered flags by slot. Read without locking from any thread, so the array is never
+     * modified once published. A new copy is stored every time a slot changes.
+     */
+    private volatile RegisteredRegionFlag<?>[] registeredFlagsBySlot = new RegisteredRegionFlag<?>[0];
+    /** Trackers whose coalesced listeners must be called by the next update task run. Main thread only. */
+    private final List<RegionFlagTracker<?>> pendingCoalescedTrackers = new ArrayList<>();
 
     // Detected during onLoad(), as we need to register flags into that API before enable() occurs
     private static final RegionFlagRegistry instance = initRegistryInstance();
@@ -40,28 +79,58 @@ public abstract class RegionFlagRegistry {
      *               WorldGuard or such to be re-used when it re-enables.
      * @param flag RegionFlag to register
      */
-    public final synchronized void register(Plugin plugin, RegionFlag<?> flag) {
+    public final void register(Plugin plugin, RegionFlag<?> flag) {
+        registerAll(plugin, flag);
+    }
+
+    /**
+     * Registers multiple region flags at once. Must be done inside {@link Plugin#onLoad()}.
+     * Plugins that register many flags should prefer this over calling
+     * {@link #register(Plugin, RegionFlag)} for every flag, as the flags are then
+     * set up in WorldGuard or such in a single pass.<br>
+     * <br>
+     * Duplicate names, and names that are already registered, are rejected before any of
+     * the flags is registered.
+     *
+     * @param plugin Plugin owner of the flags. Must not be null. When this plugin disables,
+     *               the flags are automatically un-registered.
+     * @param flags RegionFlags to register
+     * @see #register(Plugin, RegionFlag)
+     */
+    public final synchronized void registerAll(Plugin plugin, RegionFlag<?>... flags) {
         if (plugin == null) {
             throw new IllegalArgumentException("Plugin is null");
         }
-        if (flag == null) {
-            throw new IllegalArgumentException("RegionFlag is null");
+        if (flags == null) {
+            throw new IllegalArgumentException("RegionFlags is null");
         }
         if (plugin.isEnabled()) {
             throw new IllegalStateException("Region flags can only be registered inside onLoad()");
         }
 
-        // Check not already registered
-        for (RegisteredRegionFlag<?> registeredFlag : registeredFlags) {
-            if (registeredFlag.flag.name().equals(flag.name())) {
-                throw new IllegalStateException("Flag is already registered by plugin " + plugin.getName() + ": " + flag);
+        // Check none are already registered, or are registered twice
+        Set<String> names = new HashSet<>(flags.length);
+        for (RegionFlag<?> flag : flags) {
+            if (flag == null) {
+                throw new IllegalArgumentException("RegionFlag is null");
+            }
+            RegisteredRegionFlag<?> existing = registeredFlagsByName.get(flag.name());
+            if (existing != null) {
+                throw new IllegalStateException("Flag is already registered by plugin " + existing.plugin.getName() + ": " + flag);
+            }
+            if (!names.add(flag.name())) {
+                throw new IllegalArgumentException("Flag is registered more than once: " + flag);
             }
         }
 
-        // Register a new flag. Callback will set it up in WorldGuard or such, if enabled.
-        RegisteredRegionFlag<?> registeredRegionFlag = createNewFlag(plugin, flag);
-        registeredFlags.add(registeredRegionFlag);
-        onFlagRegistered(registeredRegionFlag);
+        // Register the new flags. Callback will set it up in WorldGuard or such, if enabled.
+        for (RegisteredRegionFlag<?> registeredRegionFlag : createNewFlags(plugin, Arrays.asList(flags))) {
+            assignSlot(registeredRegionFlag);
+            registeredFlags.add(registeredRegionFlag);
+            registeredFlagsByName.put(registeredRegionFlag.flag.name(), registeredRegionFlag);
+            registeredFlagsByPlugin.computeIfAbsent(plugin, p -> new LinkedHashSet<>()).add(registeredRegionFlag);
+            onFlagRegistered(registeredRegionFlag);
+        }
     }
 
     /**
@@ -77,30 +146,414 @@ public abstract class RegionFlagRegistry {
      * @return RegionFlagTracker object
      * @param <T> Flag value type
      */
+    public <T> RegionFlagTracker<T> track(Player player, RegionFlag<T> flag) {
+        RegionFlagTracker<T> tracker = getOrCreateTracker(player, flag);
+        tracker.markRead();
+        return tracker;
+    }
+
+    /**
+     * Retrieves the RegionFlag value tracker of an entity that is not a player, such as a mob,
+     * vehicle or dropped item. The value is automatically kept up to date when the entity moves
+     * between regions, and listeners are called when it changes. The flag is evaluated for
+     * no particular player, like {@link #getValueAt(RegionFlag, Location)} does.
+     * Entities that do not move between blocks cost nothing to keep up to date.<br>
+     * <br>
+     * The tracker is removed once the entity dies or is unloaded. If the entity is already
+     * invalid, then this method will return a fallback tracker with value always absent.
+     * If the entity is a Player, this method does the same as {@link #track(Player, RegionFlag)}.
+     * Otherwise {@link RegionFlagTracker#getPlayer()} of the tracker throws an exception,
+     * use {@link RegionFlagTracker#getEntity()} instead.
+     *
+     * @param entity Entity to track. Must be a valid Entity for tracking to work.
+     * @param flag RegionFlag to track. Must be registered or an error is thrown.
+     * @return RegionFlagTracker object
+     * @param <T> Flag value type
+     */
+    public <T> RegionFlagTracker<T> trackEntity(Entity entity, RegionFlag<T> flag) {
+        RegionFlagTracker<T> tracker = getOrCreateTracker(entity, flag);
+        tracker.markRead();
+        return tracker;
+    }
+
+    // Same as track(), but does not count as reading the tracker
+    @SuppressWarnings("unchecked")
+    <T> RegionFlagTracker<T> getOrCreateTracker(Entity entity, RegionFlag<T> flag) {
+        // Fast path: tracker already exists. This does not lock or allocate, so it can be called
+        // from many threads at once without contending with register() or cleanup.
+        TrackerTable table = trackers.get(entity);
+        if (table != null && table.entity == entity) {
+            RegionFlagTracker<?> existing = table.get(flag.slot);
+            if (existing != null && existing.getFlag() == flag) {
+                return (RegionFlagTracker<T>) existing;
+            }
+        }
+
+        return trackSlow(entity, flag);
+    }
+
+    /**
+     * Retrieves the per-player RegionFlag value tracker of a State flag.
+     *
+     * @param player Player to track
+     * @param flag RegionFlag to track. Must be registered or an error is thrown.
+     * @return RegionFlagTracker object
+     * @see #track(Player, RegionFlag)
+     */
+    public RegionFlagTracker.OfState track(Player player, RegionFlag.OfState flag) {
+        return (RegionFlagTracker.OfState) track(player, (RegionFlag<RegionFlag.State>) flag);
+    }
+
+    /**
+     * Retrieves the per-player RegionFlag value tracker of a Boolean flag.
+     *
+     * @param player Player to track
+     * @param flag RegionFlag to track. Must be registered or an error is thrown.
+     * @return RegionFlagTracker object
+     * @see #track(Player, RegionFlag)
+     */
+    public RegionFlagTracker.OfBoolean track(Player player, RegionFlag.OfBoolean flag) {
+        return (RegionFlagTracker.OfBoolean) track(player, (RegionFlag<Boolean>) flag);
+    }
+
+    /**
+     * Retrieves the per-player RegionFlag value tracker of an Integer flag.
+     *
+     * @param player Player to track
+     * @param flag RegionFlag to track. Must be registered or an error is thrown.
+     * @return RegionFlagTracker object
+     * @see #track(Player, RegionFlag)
+     */
+    public RegionFlagTracker.OfInteger track(Player player, RegionFlag.OfInteger flag) {
+        return (RegionFlagTracker.OfInteger) track(player, (RegionFlag<Integer>) flag);
+    }
+
+    /**
+     * Retrieves the per-player RegionFlag value tracker of a Double flag.
+     *
+     * @param player Player to track
+     * @param flag RegionFlag to track. Must be registered or an error is thrown.
+     * @return RegionFlagTracker object
+     * @see #track(Player, RegionFlag)
+     */
+    public RegionFlagTracker.OfDouble track(Player player, RegionFlag.OfDouble flag) {
+        return (RegionFlagTracker.OfDouble) track(player, (RegionFlag<Double>) flag);
+    }
+
     @SuppressWarnings("unchecked")
-    public synchronized <T> RegionFlagTracker<T> track(Player player, RegionFlag<T> flag) {
-        // If the player instance is invalid, return a detached tracker with an empty value
+    private synchronized <T> RegionFlagTracker<T> trackSlow(Entity entity, RegionFlag<T> flag) {
+        RegisteredRegionFlag<?> registeredFlag = getRegisteredFlagVerify(flag);
+        TrackerTable table = trackers.get(entity);
+        if (table != null && table.entity == entity) {
+            RegionFlagTracker<?> existing = table.get(registeredFlag.slot);
+            if (existing != null) {
+                return (RegionFlagTracker<T>) existing;
+            }
+        } else {
+            if (table != null) {
+                unlinkTrackerTable(table); // Stale table of a previous instance
+            }
+            table = null;
+        }
+
+        // If the player or entity instance is invalid, return a detached tracker with an empty value
         // We don't want to cause any weird memory leaks
-        if (hasPlayerQuit(player)) {
-            RegionFlagTracker<T> existing = (RegionFlagTracker<T>) trackers.get(new PlayerFlagKey(player, flag));
-            return existing != null ? existing : new RegionFlagTracker<>(getFlagOwnerVerify(flag), player, flag);
+        if (isGone(entity)) {
+            return flag.createTracker(registeredFlag.plugin, entity);
         }
 
-        // Get or create trackers of flags per player. These are automatically created and cleaned up
-        // when players quit the server.
-        return (RegionFlagTracker<T>) trackers.computeIfAbsent(new PlayerFlagKey(player, flag),
-                k -> new RegionFlagTracker<>(getFlagOwnerVerify(k.flag), k.player, k.flag));
+        // Create trackers of flags per player. These are automatically cleaned up when players
+        // quit the server, or when entities are removed. Creation is done while holding the lock, so that a tracker is never
+        // created for a flag that is being un-registered at the same time.
+        if (table == null) {
+            table = new TrackerTable(entity);
+            trackers.put(entity, table);
+        }
+        RegionFlagTracker<T> tracker = flag.createTracker(registeredFlag.plugin, entity);
+        table.set(registeredFlag.slot, tracker, registeredFlagsBySlot.length);
+        registeredFlag.trackerTables.add(table);
+        return tracker;
     }
 
-    private Plugin getFlagOwnerVerify(RegionFlag<?> flag) {
-        for (RegisteredRegionFlag<?> registeredFlag : registeredFlags) {
-            if (registeredFlag.flag == flag) {
-                return registeredFlag.plugin;
+    /**
+     * Adds a listener that is called when the value of a flag changes for any player.
+     * This avoids having to track the flag and add a listener for every player that joins.
+     * The listener receives the tracker of the player whose value changed.<br>
+     * <br>
+     * The listener exists for as long as the flag stays registered, which is until the
+     * plugin owner of the flag disables.
+     *
+     * @param flag RegionFlag to listen to. Must be registered or an error is thrown.
+     * @param listener Listener
+     * @param <T> Flag value type
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized <T> void addGlobalListener(RegionFlag<T> flag, RegionFlagTracker.ChangeListener<T> listener) {
+        RegisteredRegionFlag<T> registeredFlag = (RegisteredRegionFlag<T>) getRegisteredFlagVerify(flag);
+        List<RegionFlagTracker.ChangeListener<T>> newListeners = new ArrayList<>(registeredFlag.globalListeners);
+        newListeners.add(listener);
+        registeredFlag.globalListeners = newListeners;
+        onObservedByAllPlayers(registeredFlag);
+    }
+
+    /**
+     * Starts keeping an index of players by the value of a flag. Afterwards,
+     * {@link #getPlayersWithValue(RegionFlag, Object)} can be used to find all players for which
+     * the flag has a certain value. The index is kept up to date as values change, which means
+     * the flag is evaluated for all players from then on. Should be called on the main thread,
+     * for example inside {@link Plugin#onEnable()}.<br>
+     * <br>
+     * The index exists for as long as the flag stays registered, which is until the
+     * plugin owner of the flag disables.
+     *
+     * @param flag RegionFlag to index. Must be registered or an error is thrown.
+     */
+    public synchronized void indexValues(RegionFlag<?> flag) {
+        RegisteredRegionFlag<?> registeredFlag = getRegisteredFlagVerify(flag);
+        if (registeredFlag.valueIndex != null) {
+            return;
+        }
+
+        // Add the trackers of players that already exist. Other players are added once the
+        // implementation queries the flag for them. Other entities are never indexed.
+        PlayerValueIndex index = new PlayerValueIndex();
+        for (TrackerTable table : trackers.values()) {
+            if (!(table.entity instanceof Player)) {
+                continue;
+            }
+            RegionFlagTracker<?> tracker = table.get(registeredFlag.slot);
+            if (tracker != null && tracker.getFlag() == flag) {
+                index.update(tracker);
+            }
+        }
+        registeredFlag.valueIndex = index;
+        onObservedByAllPlayers(registeredFlag);
+    }
+
+    /**
+     * Gets all the players for which a flag currently has a certain value. The values of the flag
+     * must be indexed using {@link #indexValues(RegionFlag)} first. This method does not copy
+     * anything, and the collection returned can be safely iterated while values change.
+     * It always shows the players that currently have the value, while changes made
+     * during an iteration may or may not be seen.
+     *
+     * @param flag RegionFlag
+     * @param value Value of the flag. Players for which the flag is not set can not be queried.
+     * @return Unmodifiable collection of the players for which the flag has this value
+     * @param <T> Flag value type
+     * @throws IllegalStateException If the values of the flag are not indexed
+     */
+    public <T> Collection<Player> getPlayersWithValue(RegionFlag<T> flag, T value) {
+        if (value == null) {
+            throw new IllegalArgumentException("Value can not be null");
+        }
+        PlayerValueIndex index = getRegisteredFlagVerify(flag).valueIndex;
+        if (index == null) {
+            throw new IllegalStateException("Values of flag " + flag + " are not indexed");
+        }
+        return index.get(value);
+    }
+
+    /**
+     * Gets the value of a flag at a Location, for no particular player. This can be used for
+     * things that happen in the world without a player involved, like redstone or mobs.
+     * Values are cached per chunk section, so repeated queries in the same area are cheap.
+     * Must be called on the main thread.
+     *
+     * @param flag RegionFlag to query. Must be registered or an error is thrown.
+     * @param location Location to query the flag value at
+     * @return Flag value, or empty if not set at this Location
+     * @param <T> Flag value type
+     */
+    @SuppressWarnings("unchecked")
+    public <T> Optional<T> getValueAt(RegionFlag<T> flag, Location location) {
+        RegisteredRegionFlag<T> registeredFlag = (RegisteredRegionFlag<T>) getRegisteredFlagVerify(flag);
+        return Optional.ofNullable(registeredFlag.getValueAt(location));
+    }
+
+    /**
+     * Called after a global listener was added for a flag, or its values are indexed.
+     * The implementation must from then on keep the value of this flag up to date for all players.
+     *
+     * @param registeredFlag RegisteredRegionFlag that is now observed for all players
+     */
+    protected void onObservedByAllPlayers(RegisteredRegionFlag<?> registeredFlag) {
+    }
+
+    // Called by RegionFlagTracker when its value changes
+    @SuppressWarnings("unchecked")
+    <T> void onTrackerValueChanged(RegionFlagTracker<T> tracker) {
+        final RegionFlag<T> flag = tracker.getFlag();
+        final RegisteredRegionFlag<?>[] registeredFlagsBySlot = this.registeredFlagsBySlot;
+        final int slot = flag.slot;
+        if (slot >= 0 && slot < registeredFlagsBySlot.length) {
+            final RegisteredRegionFlag<?> registeredFlag = registeredFlagsBySlot[slot];
+            if (registeredFlag != null && registeredFlag.flag == flag) {
+                // Only players are indexed and passed to global listeners
+                if (!(tracker.getEntity() instanceof Player)) {
+                    return;
+                }
+
+                final PlayerValueIndex index = registeredFlag.valueIndex;
+                if (index != null) {
+                    index.update(tracker);
+                }
+
+                final List<RegionFlagTracker.ChangeListener<T>> listeners = ((RegisteredRegionFlag<T>) registeredFlag).globalListeners;
+                for (int i = 0; i < listeners.size(); i++) {
+                    listeners.get(i).onValueChanged(tracker);
+                }
+            }
+        }
+    }
+
+    // Called when a player quits or an entity is removed, while synchronized
+    // Removes the trackers of the table from the value indexes, and the table from the flags
+    final void unlinkTrackerTable(TrackerTable table) {
+        final RegionFlagTracker<?>[] tableTrackers = table.getAll();
+        final RegisteredRegionFlag<?>[] registeredFlagsBySlot = this.registeredFlagsBySlot;
+        for (int slot = 0; slot < tableTrackers.length && slot < registeredFlagsBySlot.length; slot++) {
+            final RegisteredRegionFlag<?> registeredFlag = registeredFlagsBySlot[slot];
+            final RegionFlagTracker<?> tracker = tableTrackers[slot];
+            if (registeredFlag != null && tracker != null) {
+                registeredFlag.trackerTables.remove(table);
+                if (registeredFlag.valueIndex != null) {
+                    registeredFlag.valueIndex.remove(tracker);
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets all the flags registered by a plugin. Must be called while synchronized on this registry.
+     *
+     * @param plugin Plugin owner of the flags
+     * @return Copy of the registered flags of this plugin, empty if it has none
+     */
+    protected final List<RegisteredRegionFlag<?>> getRegisteredFlags(Plugin plugin) {
+        Set<RegisteredRegionFlag<?>> flags = registeredFlagsByPlugin.get(plugin);
+        return (flags == null) ? Collections.emptyList() : new ArrayList<>(flags);
+    }
+
+    private RegisteredRegionFlag<?> getRegisteredFlagVerify(RegionFlag<?> flag) {
+        final RegisteredRegionFlag<?>[] registeredFlagsBySlot = this.registeredFlagsBySlot;
+        int slot = flag.slot;
+        if (slot >= 0 && slot < registeredFlagsBySlot.length) {
+            RegisteredRegionFlag<?> registeredFlag = registeredFlagsBySlot[slot];
+            if (registeredFlag != null && registeredFlag.flag == flag) {
+                return registeredFlag;
             }
         }
         throw new IllegalArgumentException("Flag " + flag + " was not registered");
     }
 
+    private void assignSlot(RegisteredRegionFlag<?> registeredFlag) {
+        int slot = usedSlots.nextClearBit(0);
+        usedSlots.set(slot);
+        registeredFlag.slot = slot;
+        registeredFlag.flag.slot = slot;
+
+        // Publish a new copy, so readers never see a partially updated array
+        final RegisteredRegionFlag<?>[] current = registeredFlagsBySlot;
+        final RegisteredRegionFlag<?>[] updated = Arrays.copyOf(current, Math.max(current.length, slot + 1));
+        updated[slot] = registeredFlag;
+        registeredFlagsBySlot = updated;
+    }
+
+    /**
+     * Un-registers a flag: removes it from {@link #registeredFlags}, releases its slot and name,
+     * and removes the trackers of that flag from the players and entities that have one.
+     * Only the tables of those players and entities are touched.
+     * Must be called while synchronized on this registry.
+     *
+     * @param registeredFlag RegisteredRegionFlag to un-register
+     */
+    protected final void releaseSlot(RegisteredRegionFlag<?> registeredFlag) {
+        registeredFlags.remove(registeredFlag);
+        registeredFlagsByName.remove(registeredFlag.flag.name(), registeredFlag);
+        Set<RegisteredRegionFlag<?>> pluginFlags = registeredFlagsByPlugin.get(registeredFlag.plugin);
+        if (pluginFlags != null && pluginFlags.remove(registeredFlag) && pluginFlags.isEmpty()) {
+            registeredFlagsByPlugin.remove(registeredFlag.plugin);
+        }
+
+        int slot = registeredFlag.slot;
+        if (slot < 0 || registeredFlagsBySlot[slot] != registeredFlag) {
+            return;
+        }
+        for (TrackerTable table : registeredFlag.trackerTables) {
+            table.set(slot, null, 0);
+        }
+        registeredFlag.trackerTables.clear();
+        final RegisteredRegionFlag<?>[] updated = registeredFlagsBySlot.clone();
+        updated[slot] = null;
+        registeredFlagsBySlot = updated;
+        usedSlots.clear(slot);
+        registeredFlag.slot = -1;
+        if (registeredFlag.flag.slot == slot) {
+            registeredFlag.flag.slot = -1;
+        }
+    }
+
+    // Called by RegionFlagTracker when its value changes and it has coalesced listeners
+    void scheduleCoalescedListeners(RegionFlagTracker<?> tracker) {
+        pendingCoalescedTrackers.add(tracker);
+    }
+
+    /**
+     * Called when a dormant tracker is read, or when a new tracker is created. The implementation
+     * should wake the tracker up and bring its value up to date
+     * as soon as possible. Can be called from any thread.
+     *
+     * @param tracker Tracker that was read
+     */
+    protected void onDormantTrackerRead(RegionFlagTracker<?> tracker) {
+    }
+
+    /**
+     * Puts trackers that were not observed since the last time this method was called to
+     * sleep. Dormant trackers no longer have to be kept up to date. Should be called
+     * periodically by the implementation.
+     */
+    protected final void sweepUnobservedTrackers() {
+        final RegisteredRegionFlag<?>[] registeredFlagsBySlot = this.registeredFlagsBySlot;
+        for (TrackerTable table : trackers.values()) {
+            final RegionFlagTracker<?>[] tableTrackers = table.getAll();
+            for (int slot = 0; slot < tableTrackers.length; slot++) {
+                final RegionFlagTracker<?> tracker = tableTrackers[slot];
+                if (tracker != null) {
+                    final RegisteredRegionFlag<?> registeredFlag = (slot < registeredFlagsBySlot.length)
+                            ? registeredFlagsBySlot[slot] : null;
+                    tracker.sweepUnobserved(registeredFlag != null && registeredFlag.isObservedByAllPlayers()
+                            && table.entity instanceof Player);
+                }
+            }
+        }
+    }
+
+    // Called when disabling, the trackers are discarded
+    void clearCoalescedListeners() {
+        pendingCoalescedTrackers.clear();
+    }
+
+    /**
+     * Calls the coalesced listeners of all trackers whose value changed since the
+     * last time this method was called. Should be called once every tick on the main thread,
+     * by the update task of the implementation after it updated the trackers.
+     */
+    protected final void dispatchCoalescedListeners() {
+        final List<RegionFlagTracker<?>> pending = this.pendingCoalescedTrackers;
+        if (!pending.isEmpty()) {
+            try {
+                // Listeners can change values again, which adds to the end of this list
+                for (int i = 0; i < pending.size(); i++) {
+                    pending.get(i).notifyCoalescedListeners();
+                }
+            } finally {
+                pending.clear();
+            }
+        }
+    }
+
     /**
      * Called to create a new registered flag. The implementation should talk with WorldGuard's
      * API to initialize the flag. Or if disabled, does nothing special.
@@ -114,6 +567,23 @@ public abstract class RegionFlagRegistry {
         return new RegisteredRegionFlag<>(plugin, flag);
     }
 
+    /**
+     * Called to create multiple new registered flags at once. By default calls
+     * {@link #createNewFlag(Plugin, RegionFlag)} for every flag. Implementations can
+     * override this to set up all flags in WorldGuard's API in a single pass.
+     *
+     * @param plugin Plugin owner of the region flags
+     * @param flags RegionFlags, with unique names that are not yet registered
+     * @return RegisteredRegionFlag implementations, in the same order as the flags
+     */
+    protected List<RegisteredRegionFlag<?>> createNewFlags(Plugin plugin, List<RegionFlag<?>> flags) {
+        List<RegisteredRegionFlag<?>> result = new ArrayList<>(flags.size());
+        for (RegionFlag<?> flag : flags) {
+            result.add(createNewFlag(plugin, flag));
+        }
+        return result;
+    }
+
     /**
      * Called after a newly created flag is registered. Maintenance logic here.
      *
@@ -136,12 +606,50 @@ public abstract class RegionFlagRegistry {
     protected static class RegisteredRegionFlag<T> {
         public final Plugin plugin;
         public final RegionFlag<T> flag;
+        int slot = -1;
+        /** Listeners called when the value changes for any player. Copy-on-write. */
+        volatile List<RegionFlagTracker.ChangeListener<T>> globalListeners = Collections.emptyList();
+        /** Players by the value of this flag, null if not indexed */
+        volatile PlayerValueIndex valueIndex = null;
+        /** Tables of the players and entities that have a tracker of this flag. Guarded by the registry lock. */
+        final Set<TrackerTable> trackerTables = new HashSet<>();
 
         public RegisteredRegionFlag(Plugin plugin, RegionFlag<T> flag) {
             this.plugin = plugin;
             this.flag = flag;
         }
 
+        /**
+         * Gets the slot index assigned to this flag while it is registered. This index
+         * is unique among all registered flags and is re-used after un-registering.
+         *
+         * @return slot index, or -1 if not registered
+         */
+        public final int getSlot() {
+            return slot;
+        }
+
+        /**
+         * Gets whether listeners were added for this flag using
+         * {@link RegionFlagRegistry#addGlobalListener(RegionFlag, RegionFlagTracker.ChangeListener)},
+         * or its values are indexed. If so, the value of this flag must be kept up to date for all players.
+         *
+         * @return True if observed for all players
+         */
+        public final boolean isObservedByAllPlayers() {
+            return valueIndex != null || !globalListeners.isEmpty();
+        }
+
+        /**
+         * Gets the value of this flag at a Location, for no particular player
+         *
+         * @param location Location
+         * @return Flag value, or null if not set
+         */
+        public T getValueAt(Location location) {
+            return null;
+        }
+
         public void registerHandler() {
         }
         public void unregisterHandler() {
@@ -149,40 +657,158 @@ public abstract class RegionFlagRegistry {
     }
 
     /**
-     * Helper class to store a player + flag as key in hashmaps
+     * Index of players by the value of a flag. Updated on the main thread, can be read from any thread.
+     * The set of players of a value is removed once the last player leaves it. Only the trackers
+     * of players are indexed, the trackers of other entities are ignored.
      */
-    protected static final class PlayerFlagKey {
-        private final Player player;
-        private final RegionFlag<?> flag;
+    static final class PlayerValueIndex {
+        private final ConcurrentMap<Object, Set<Player>> playersByValue = new ConcurrentHashMap<>();
 
-        public PlayerFlagKey(Player player, RegionFlag<?> flag) {
-            this.player = player;
-            this.flag = flag;
+        /**
+         * Moves the player of a tracker to the set of players of the current value.
+         * Does nothing if the tracker is for an entity that is not a player.
+         *
+         * @param tracker Tracker whose value changed
+         */
+        void update(RegionFlagTracker<?> tracker) {
+            if (!(tracker.getEntity() instanceof Player)) {
+                return;
+            }
+            final Object oldValue = tracker.indexedValue;
+            final Object newValue = tracker.peekValue();
+            if (!Objects.equals(oldValue, newValue)) {
+                remove(tracker);
+                if (newValue != null) {
+                    final Player player = (Player) tracker.getEntity();
+                    playersByValue.compute(newValue, (v, players) -> {
+                        if (players == null) {
+                            players = ConcurrentHashMap.newKeySet();
+                        }
+                        players.add(player);
+                        return players;
+                    });
+                }
+                tracker.indexedValue = newValue;
+            }
+        }
+
+        void remove(RegionFlagTracker<?> tracker) {
+            final Object oldValue = tracker.indexedValue;
+            if (oldValue != null) { // Only ever set for the trackers of players
+                tracker.indexedValue = null;
+                final Player player = (Player) tracker.getEntity();
+                playersByValue.computeIfPresent(oldValue, (v, players) -> {
+                    players.remove(player);
+                    return players.isEmpty() ? null : players;
+                });
+            }
+        }
+
+        Collection<Player> get(Object value) {
+            return new PlayersWithValue(playersByValue, value);
+        }
+    }
+
+    /**
+     * Unmodifiable view of the players of a value in the index. Sets are removed and
+     * created again as players leave and enter, so the set is looked up every time.
+     */
+    private static final class PlayersWithValue extends AbstractCollection<Player> {
+        private final Map<Object, Set<Player>> playersByValue;
+        private final Object value;
+
+        public PlayersWithValue(Map<Object, Set<Player>> playersByValue, Object value) {
+            this.playersByValue = playersByValue;
+            this.value = value;
+        }
+
+        private Set<Player> players() {
+            final Set<Player> players = playersByValue.get(value);
+            return (players == null) ? Collections.emptySet() : Collections.unmodifiableSet(players);
+        }
+
+        @Override
+        public Iterator<Player> iterator() {
+            return players().iterator();
+        }
+
+        @Override
+        public int size() {
+            return players().size();
         }
 
         @Override
-        public int hashCode() {
-            return player.hashCode() + 31 * flag.hashCode();
+        public boolean isEmpty() {
+            return players().isEmpty();
         }
 
         @Override
-        public boolean equals(Object o) {
-            if (o instanceof PlayerFlagKey) {
-                PlayerFlagKey other = (PlayerFlagKey) o;
-                return this.player == other.player &&
-                        this.flag == other.flag;
+        public boolean contains(Object o) {
+            return players().contains(o);
+        }
+    }
+
+    /**
+     * Stores all the trackers of a single player or entity, indexed by the slot of the registered
+     * flag. Reads are lock-free, writes must be done while synchronized on the registry.
+     */
+    protected static final class TrackerTable {
+        public final Entity entity;
+        private volatile RegionFlagTracker<?>[] trackers = new RegionFlagTracker<?>[0];
+
+        public TrackerTable(Entity entity) {
+            this.entity = entity;
+        }
+
+        /**
+         * Gets the tracker stored at a slot
+         *
+         * @param slot Slot index of the registered flag
+         * @return tracker at this slot, or null if none exists
+         */
+        public RegionFlagTracker<?> get(int slot) {
+            RegionFlagTracker<?>[] trackers = this.trackers;
+            return (slot >= 0 && slot < trackers.length) ? trackers[slot] : null;
+        }
+
+        /**
+         * Gets a snapshot of all trackers stored in this table. Array elements can be null.
+         * The returned array must not be modified.
+         *
+         * @return tracker array
+         */
+        public RegionFlagTracker<?>[] getAll() {
+            return trackers;
+        }
+
+        // Copy-on-write so that concurrent readers always see fully initialized trackers
+        void set(int slot, RegionFlagTracker<?> tracker, int minCapacity) {
+            RegionFlagTracker<?>[] trackers = this.trackers;
+            if (slot >= trackers.length) {
+                if (tracker == null) {
+                    return;
+                }
+                trackers = Arrays.copyOf(trackers, Math.max(slot + 1, minCapacity));
+            } else if (trackers[slot] == tracker) {
+                return;
             } else {
-                return false;
+                trackers = trackers.clone();
             }
+            trackers[slot] = tracker;
+            this.trackers = trackers;
         }
 
         @Override
         public String toString() {
-            return "{player=" + player.getName() + ", flag=" + this.flag + "}";
+            return "{entity=" + entity.getName() + "}";
         }
     }
 
     static boolean hasPlayerQuit(final Player player) {
         return !player.isValid() && Bukkit.getPlayer(player.getUniqueId()) != player;
     }
+
+    static boolean isGone(final Entity entity) {
+        return (entity instanceof Player) ? hasPlayerQuit((Player) entity) : !entity.isValid();
+    }
 }
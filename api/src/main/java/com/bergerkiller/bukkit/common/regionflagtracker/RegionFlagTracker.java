@@ -1,25 +1,55 @@
 package com.bergerkiller.bukkit.common.regionflagtracker;
 
+import org.bukkit.entity.Entity;
 import org.bukkit.entity.Player;
 import org.bukkit.plugin.Plugin;
 
+import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Level;
 
 /**
- * Keeps track of the value of a flag for a particular Player.
+ * Keeps track of the value of a flag for a particular Player, or another Entity.<br>
+ * <br>
+ * Trackers of STATE, BOOLEAN, INTEGER and DOUBLE flags are a specialized subclass,
+ * such as {@link RegionFlagTracker.OfInteger}, which store the value as a primitive.
+ * Their value can be read without allocating anything.<br>
+ * <br>
+ * This class can only be extended by this library itself.<br>
+ * <br>
+ * When a tracker has no listeners and is not read for a while, its value is no longer kept
+ * up to date. Reading it again brings it up to date. On the main thread this happens right
+ * away, on other threads the value is updated within a tick. The exception is reading it from
+ * inside a listener, while the registry is updating values. Then the value read can be
+ * outdated, and is brought up to date in the next tick.
  *
  * @param <T> Flag value type
  */
-public final class RegionFlagTracker<T> {
+public class RegionFlagTracker<T> {
     private final Plugin plugin;
-    private final Player player;
+    private final Entity entity;
     private final RegionFlag<T> flag;
     private List<ChangeListener<T>> listeners = Collections.emptyList();
+    private List<ChangeListener<T>> coalescedListeners = Collections.emptyList();
+    private boolean coalescedListenersPending = false;
+    private List<AsyncListenerEntry<T>> asyncListeners = Collections.emptyList();
+    /** Value last sent to the async listeners, which is the old value of the next change */
+    private T lastAsyncValue = null;
     private T value = null;
+    /** Set while the value is not kept up to date, because nobody observed this tracker */
+    private volatile boolean dormant = true;
+    private volatile boolean wakeRequested = false;
+    /** Set by readers on any thread, cleared by the periodic sweep on the main thread */
+    private volatile boolean readRecently = true;
+    /** Value under which the player is stored in the value index of the flag, if indexed */
+    Object indexedValue = null;
 
     /**
      * Retrieves the per-player RegionFlag value tracker. The value is automatically kept
@@ -38,9 +68,70 @@ public final class RegionFlagTracker<T> {
         return RegionFlagRegistry.instance().track(player, flag);
     }
 
-    RegionFlagTracker(Plugin plugin, Player player, RegionFlag<T> flag) {
+    /**
+     * Retrieves the per-player RegionFlag value tracker of a State flag.
+     *
+     * @param player Player to track
+     * @param flag RegionFlag to track. Must be registered or an error is thrown.
+     * @return RegionFlagTracker object
+     * @see #track(Player, RegionFlag)
+     */
+    public static RegionFlagTracker.OfState track(Player player, RegionFlag.OfState flag) {
+        return RegionFlagRegistry.instance().track(player, flag);
+    }
+
+    /**
+     * Retrieves the per-player RegionFlag value tracker of a Boolean flag.
+     *
+     * @param player Player to track
+     * @param flag RegionFlag to track. Must be registered or an error is thrown.
+     * @return RegionFlagTracker object
+     * @see #track(Player, RegionFlag)
+     */
+    public static RegionFlagTracker.OfBoolean track(Player player, RegionFlag.OfBoolean flag) {
+        return RegionFlagRegistry.instance().track(player, flag);
+    }
+
+    /**
+     * Retrieves the per-player RegionFlag value tracker of an Integer flag.
+     *
+     * @param player Player to track
+     * @param flag RegionFlag to track. Must be registered or an error is thrown.
+     * @return RegionFlagTracker object
+     * @see #track(Player, RegionFlag)
+     */
+    public static RegionFlagTracker.OfInteger track(Player player, RegionFlag.OfInteger flag) {
+        return RegionFlagRegistry.instance().track(player, flag);
+    }
+
+    /**
+     * Retrieves the per-player RegionFlag value tracker of a Double flag.
+     *
+     * @param player Player to track
+     * @param flag RegionFlag to track. Must be registered or an error is thrown.
+     * @return RegionFlagTracker object
+     * @see #track(Player, RegionFlag)
+     */
+    public static RegionFlagTracker.OfDouble track(Player player, RegionFlag.OfDouble flag) {
+        return RegionFlagRegistry.instance().track(player, flag);
+    }
+
+    /**
+     * Retrieves the RegionFlag value tracker of an entity that is not a player.
+     *
+     * @param entity Entity to track
+     * @param flag RegionFlag to track. Must be registered or an error is thrown.
+     * @return RegionFlagTracker object
+     * @param <T> Flag value type
+     * @see RegionFlagRegistry#trackEntity(Entity, RegionFlag)
+     */
+    public static <T> RegionFlagTracker<T> trackEntity(Entity entity, RegionFlag<T> flag) {
+        return RegionFlagRegistry.instance().trackEntity(entity, flag);
+    }
+
+    RegionFlagTracker(Plugin plugin, Entity entity, RegionFlag<T> flag) {
         this.plugin = plugin;
-        this.player = player;
+        this.entity = entity;
         this.flag = flag;
     }
 
@@ -54,12 +145,27 @@ public final class RegionFlagTracker<T> {
     }
 
     /**
-     * Gets the Player for which the flag value is tracked
+     * Gets the Player for which the flag value is tracked. Trackers created with
+     * {@link #trackEntity(Entity, RegionFlag)} for an entity that is not a player
+     * have no player, use {@link #getEntity()} for those instead.
      *
      * @return Player
+     * @throws IllegalStateException If this tracker is for an entity that is not a player
      */
     public Player getPlayer() {
-        return player;
+        if (entity instanceof Player) {
+            return (Player) entity;
+        }
+        throw new IllegalStateException("Tracker is for an entity that is not a player: " + entity);
+    }
+
+    /**
+     * Gets the Player or other Entity for which the flag value is tracked
+     *
+     * @return Entity
+     */
+    public Entity getEntity() {
+        return entity;
     }
 
     /**
@@ -71,13 +177,28 @@ public final class RegionFlagTracker<T> {
         return flag;
     }
 
+    /**
+     * Gets whether the flag is set for any region the Player is inside (including global).
+     * If this tracker was not read for a while and this is called from inside a listener,
+     * the result can be outdated until the next tick.
+     *
+     * @return True if the flag has a value
+     */
+    public boolean isPresent() {
+        markRead();
+        return value != null;
+    }
+
     /**
      * Gets the value of the flag for the Player in the current region. If the flag is not
      * set for any region the player is inside (including global), returns empty.
+     * If this tracker was not read for a while and this is called from inside a listener,
+     * the value can be outdated until the next tick.
      *
      * @return Flag value, or empty if not set
      */
     public Optional<T> getValue() {
+        markRead();
         return Optional.ofNullable(value);
     }
 
@@ -90,16 +211,391 @@ public final class RegionFlagTracker<T> {
      * @param listener Listener
      */
     public synchronized void addListener(ChangeListener<T> listener) {
+        markRead();
         List<ChangeListener<T>> newListeners = new ArrayList<>(this.listeners);
         newListeners.add(listener);
         this.listeners = newListeners;
     }
 
+    /**
+     * Adds a new coalesced value change listener to this tracker. Unlike {@link #addListener(ChangeListener)},
+     * this listener is not called right away when the value changes. Instead, it is called at most once
+     * per tick, with the latest value, by the update task the registry runs every tick. Changes that
+     * happen after that task ran, such as those caused by players moving, are therefore delivered
+     * when the task runs again in the next tick, after its own updates. This is useful for listeners
+     * that do expensive work, like updating a scoreboard, when the value can change many times a tick.<br>
+     * <br>
+     * The listener may be called when the value changed and then changed back to the original
+     * value within the same tick. This listener will exist for as long as this tracker exists.
+     *
+     * @param listener Listener
+     */
+    public synchronized void addCoalescedListener(ChangeListener<T> listener) {
+        markRead();
+        List<ChangeListener<T>> newListeners = new ArrayList<>(this.coalescedListeners);
+        newListeners.add(listener);
+        this.coalescedListeners = newListeners;
+    }
+
+    /**
+     * Adds a new value change listener to this tracker that is called using an Executor.
+     * This allows listeners that do slow work, like database access, to run off the main thread.
+     * The listener receives an immutable {@link ValueChange} with the old and new value,
+     * as the value of this tracker may have changed again by the time the listener runs.<br>
+     * <br>
+     * The order in which changes are delivered is up to the executor. A single-threaded executor
+     * delivers them in order. See {@link #virtualThreadExecutor()} for a built-in executor.
+     * This listener will exist for as long as this tracker exists.
+     *
+     * @param executor Executor that runs the listener
+     * @param listener Listener
+     */
+    public synchronized void addListener(Executor executor, AsyncChangeListener<T> listener) {
+        if (executor == null) {
+            throw new IllegalArgumentException("Executor can not be null");
+        }
+        markRead();
+        if (asyncListeners.isEmpty()) {
+            lastAsyncValue = peekValue();
+        }
+        List<AsyncListenerEntry<T>> newListeners = new ArrayList<>(this.asyncListeners);
+        newListeners.add(new AsyncListenerEntry<>(executor, listener));
+        this.asyncListeners = newListeners;
+    }
+
+    /**
+     * Gets an Executor that runs every task on a new virtual thread. Virtual threads are
+     * only available on Java 21 and later. On older Java versions, an executor using a
+     * shared pool of daemon threads is returned instead.
+     *
+     * @return Executor for use with {@link #addListener(Executor, AsyncChangeListener)}
+     */
+    public static Executor virtualThreadExecutor() {
+        return VirtualThreadExecutorHolder.EXECUTOR;
+    }
+
+    /**
+     * Gets the current value, or null if not set. Unlike {@link #getValue()}, does not count
+     * as reading this tracker.
+     *
+     * @return Current value or null
+     */
+    T peekValue() {
+        return value;
+    }
+
+    /**
+     * Marks this tracker as observed. If the tracker is dormant, asks the registry to wake it up.
+     * Called when the value is read or a listener is added.
+     */
+    final void markRead() {
+        if (!readRecently) {
+            readRecently = true;
+        }
+        if (dormant && !wakeRequested) {
+            wakeRequested = true;
+            RegionFlagRegistry.instance().onDormantTrackerRead(this);
+        }
+    }
+
+    /**
+     * Gets whether this tracker is dormant. The value of dormant trackers is not kept
+     * up to date, until it is read again.
+     *
+     * @return True if dormant
+     */
+    final boolean isDormant() {
+        return dormant;
+    }
+
+    /**
+     * Wakes this tracker up. Called by the registry implementation when it starts keeping
+     * the value of this tracker up to date again.
+     */
+    final void wake() {
+        dormant = false;
+        wakeRequested = false;
+    }
+
+    // Called periodically by the registry. Puts this tracker to sleep if it was not observed.
+    final void sweepUnobserved(boolean isObservedByAllPlayers) {
+        if (isObservedByAllPlayers || !listeners.isEmpty() || !coalescedListeners.isEmpty() || !asyncListeners.isEmpty()) {
+            return;
+        }
+        if (readRecently) {
+            readRecently = false;
+        } else {
+            dormant = true;
+            wakeRequested = false;
+        }
+    }
+
     // Called internally
     void updateValue(T value) {
         if (!Objects.equals(this.value, value)) {
             this.value = value;
-            listeners.forEach(l -> l.onValueChanged(this));
+            notifyListeners();
+        }
+    }
+
+    final void notifyListeners() {
+        final List<ChangeListener<T>> listeners = this.listeners;
+        for (int i = 0; i < listeners.size(); i++) {
+            listeners.get(i).onValueChanged(this);
+        }
+        RegionFlagRegistry.instance().onTrackerValueChanged(this);
+        if (!coalescedListenersPending && !coalescedListeners.isEmpty()) {
+            coalescedListenersPending = true;
+            RegionFlagRegistry.instance().scheduleCoalescedListeners(this);
+        }
+        if (!asyncListeners.isEmpty()) {
+            notifyAsyncListeners();
+        }
+    }
+
+    private void notifyAsyncListeners() {
+        final T newValue = peekValue();
+        final ValueChange<T> change = new ValueChange<>(entity, flag, lastAsyncValue, newValue);
+        lastAsyncValue = newValue;
+        for (AsyncListenerEntry<T> entry : asyncListeners) {
+            try {
+                entry.executor.execute(() -> entry.listener.onValueChanged(change));
+            } catch (RejectedExecutionException ex) {
+                plugin.getLogger().log(Level.SEVERE, "[RegionFlagTracker] Failed to notify change of " + flag, ex);
+            }
+        }
+    }
+
+    // Called by the registry from its update task, once per tick
+    final void notifyCoalescedListeners() {
+        coalescedListenersPending = false;
+        final List<ChangeListener<T>> listeners = this.coalescedListeners;
+        for (int i = 0; i < listeners.size(); i++) {
+            listeners.get(i).onValueChanged(this);
+        }
+    }
+
+    /**
+     * Tracks the value of a {@link RegionFlag.OfState} flag
+     */
+    public static final class OfState extends RegionFlagTracker<RegionFlag.State> {
+        private RegionFlag.State state = null;
+
+        OfState(Plugin plugin, Entity entity, RegionFlag.OfState flag) {
+            super(plugin, entity, flag);
+        }
+
+        @Override
+        public boolean isPresent() {
+            markRead();
+            return state != null;
+        }
+
+        @Override
+        public Optional<RegionFlag.State> getValue() {
+            markRead();
+            return Optional.ofNullable(state);
+        }
+
+        /**
+         * Gets the state of the flag, or the default if not set
+         *
+         * @param defaultValue Value to return if the flag is not set
+         * @return Flag state, or the default value if not set
+         */
+        public RegionFlag.State getState(RegionFlag.State defaultValue) {
+            markRead();
+            final RegionFlag.State state = this.state;
+            return (state == null) ? defaultValue : state;
+        }
+
+        /**
+         * Gets whether the flag is set to ALLOW. If the flag is not set, returns
+         * the default.
+         *
+         * @param defaultValue Value to return if the flag is not set
+         * @return True if ALLOW, false if DENY, the default value if not set
+         */
+        public boolean isAllowed(boolean defaultValue) {
+            markRead();
+            final RegionFlag.State state = this.state;
+            return (state == null) ? defaultValue : (state == RegionFlag.State.ALLOW);
+        }
+
+        @Override
+        RegionFlag.State peekValue() {
+            return state;
+        }
+
+        @Override
+        void updateValue(RegionFlag.State value) {
+            if (this.state != value) {
+                this.state = value;
+                notifyListeners();
+            }
+        }
+    }
+
+    /**
+     * Tracks the value of a {@link RegionFlag.OfBoolean} flag
+     */
+    public static final class OfBoolean extends RegionFlagTracker<Boolean> {
+        private boolean present = false;
+        private boolean value = false;
+
+        OfBoolean(Plugin plugin, Entity entity, RegionFlag.OfBoolean flag) {
+            super(plugin, entity, flag);
+        }
+
+        @Override
+        public boolean isPresent() {
+            markRead();
+            return present;
+        }
+
+        @Override
+        public Optional<Boolean> getValue() {
+            markRead();
+            return present ? Optional.of(value) : Optional.empty();
+        }
+
+        /**
+         * Gets the value of the flag, or the default if not set
+         *
+         * @param defaultValue Value to return if the flag is not set
+         * @return Flag value, or the default value if not set
+         */
+        public boolean getAsBoolean(boolean defaultValue) {
+            markRead();
+            return present ? value : defaultValue;
+        }
+
+        @Override
+        Boolean peekValue() {
+            return present ? value : null;
+        }
+
+        @Override
+        void updateValue(Boolean value) {
+            if (value == null) {
+                if (this.present) {
+                    this.present = false;
+                    notifyListeners();
+                }
+            } else if (!this.present || this.value != value.booleanValue()) {
+                this.value = value.booleanValue();
+                this.present = true;
+                notifyListeners();
+            }
+        }
+    }
+
+    /**
+     * Tracks the value of a {@link RegionFlag.OfInteger} flag
+     */
+    public static final class OfInteger extends RegionFlagTracker<Integer> {
+        private boolean present = false;
+        private int value = 0;
+
+        OfInteger(Plugin plugin, Entity entity, RegionFlag.OfInteger flag) {
+            super(plugin, entity, flag);
+        }
+
+        @Override
+        public boolean isPresent() {
+            markRead();
+            return present;
+        }
+
+        @Override
+        public Optional<Integer> getValue() {
+            markRead();
+            return present ? Optional.of(value) : Optional.empty();
+        }
+
+        /**
+         * Gets the value of the flag, or the default if not set
+         *
+         * @param defaultValue Value to return if the flag is not set
+         * @return Flag value, or the default value if not set
+         */
+        public int getAsInt(int defaultValue) {
+            markRead();
+            return present ? value : defaultValue;
+        }
+
+        @Override
+        Integer peekValue() {
+            return present ? value : null;
+        }
+
+        @Override
+        void updateValue(Integer value) {
+            if (value == null) {
+                if (this.present) {
+                    this.present = false;
+                    notifyListeners();
+                }
+            } else if (!this.present || this.value != value.intValue()) {
+                this.value = value.intValue();
+                this.present = true;
+                notifyListeners();
+            }
+        }
+    }
+
+    /**
+     * Tracks the value of a {@link RegionFlag.OfDouble} flag
+     */
+    public static final class OfDouble extends RegionFlagTracker<Double> {
+        private boolean present = false;
+        private double value = 0.0;
+
+        OfDouble(Plugin plugin, Entity entity, RegionFlag.OfDouble flag) {
+            super(plugin, entity, flag);
+        }
+
+        @Override
+        public boolean isPresent() {
+            markRead();
+            return present;
+        }
+
+        @Override
+        public Optional<Double> getValue() {
+            markRead();
+            return present ? Optional.of(value) : Optional.empty();
+        }
+
+        /**
+         * Gets the value of the flag, or the default if not set
+         *
+         * @param defaultValue Value to return if the flag is not set
+         * @return Flag value, or the default value if not set
+         */
+        public double getAsDouble(double defaultValue) {
+            markRead();
+            return present ? value : defaultValue;
+        }
+
+        @Override
+        Double peekValue() {
+            return present ? value : null;
+        }
+
+        @Override
+        void updateValue(Double value) {
+            if (value == null) {
+                if (this.present) {
+                    this.present = false;
+                    notifyListeners();
+                }
+            } else if (!this.present || Double.doubleToLongBits(this.value) != Double.doubleToLongBits(value.doubleValue())) {
+                // Same comparison as Double.equals()
+                this.value = value.doubleValue();
+                this.present = true;
+                notifyListeners();
+            }
         }
     }
 
@@ -107,4 +603,120 @@ public final class RegionFlagTracker<T> {
     public interface ChangeListener<T> {
         void onValueChanged(RegionFlagTracker<T> tracker);
     }
+
+    /**
+     * Listener that is called using an Executor with a snapshot of the change
+     *
+     * @param <T> Flag value type
+     * @see RegionFlagTracker#addListener(Executor, AsyncChangeListener)
+     */
+    @FunctionalInterface
+    public interface AsyncChangeListener<T> {
+        void onValueChanged(ValueChange<T> change);
+    }
+
+    /**
+     * Immutable snapshot of a change of the value of a flag for a Player
+     *
+     * @param <T> Flag value type
+     */
+    public static final class ValueChange<T> {
+        private final Entity entity;
+        private final RegionFlag<T> flag;
+        private final T oldValue;
+        private final T newValue;
+
+        ValueChange(Entity entity, RegionFlag<T> flag, T oldValue, T newValue) {
+            this.entity = entity;
+            this.flag = flag;
+            this.oldValue = oldValue;
+            this.newValue = newValue;
+        }
+
+        /**
+         * Gets the Player for which the flag value changed. Changes of the trackers of entities
+         * that are not a player have no player, use {@link #getEntity()} for those instead.
+         *
+         * @return Player
+         * @throws IllegalStateException If the value changed for an entity that is not a player
+         */
+        public Player getPlayer() {
+            if (entity instanceof Player) {
+                return (Player) entity;
+            }
+            throw new IllegalStateException("Value changed for an entity that is not a player: " + entity);
+        }
+
+        /**
+         * Gets the Player or other Entity for which the flag value changed
+         *
+         * @return Entity
+         */
+        public Entity getEntity() {
+            return entity;
+        }
+
+        /**
+         * Gets the flag whose value changed
+         *
+         * @return Flag
+         */
+        public RegionFlag<T> getFlag() {
+            return flag;
+        }
+
+        /**
+         * Gets the value of the flag before the change
+         *
+         * @return Old flag value, or empty if not set
+         */
+        public Optional<T> getOldValue() {
+            return Optional.ofNullable(oldValue);
+        }
+
+        /**
+         * Gets the value of the flag after the change
+         *
+         * @return New flag value, or empty if not set
+         */
+        public Optional<T> getNewValue() {
+            return Optional.ofNullable(newValue);
+        }
+
+        @Override
+        public String toString() {
+            return "ValueChange{entity=" + entity.getName() + ", flag=" + flag.name() +
+                    ", old=" + oldValue + ", new=" + newValue + "}";
+        }
+    }
+
+    private static final class AsyncListenerEntry<T> {
+        public final Executor executor;
+        public final AsyncChangeListener<T> listener;
+
+        public AsyncListenerEntry(Executor executor, AsyncChangeListener<T> listener) {
+            this.executor = executor;
+            this.listener = listener;
+        }
+    }
+
+    private static final class VirtualThreadExecutorHolder {
+        public static final Executor EXECUTOR = createExecutor();
+
+        private static Executor createExecutor() {
+            // Java 21+, use reflection as this library is compiled against Java 8
+            try {
+                Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                return (Executor) m.invoke(null);
+            } catch (Throwable t) {
+                /* Not supported */
+            }
+
+            return Executors.newCachedThreadPool(runnable -> {
+                Thread thread = new Thread(runnable, "RegionFlagTracker-Listener");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
 }
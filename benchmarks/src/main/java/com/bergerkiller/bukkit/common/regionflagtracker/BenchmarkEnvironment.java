@@ -0,0 +1,328 @@
+package com.bergerkiller.bukkit.common.regionflagtracker;
+
+import com.sk89q.worldedit.math.BlockVector3;
+import com.sk89q.worldguard.WorldGuard;
+import com.sk89q.worldguard.internal.platform.WorldGuardPlatform;
+import com.sk89q.worldguard.protection.managers.RegionManager;
+import com.sk89q.worldguard.protection.managers.index.HashMapIndex;
+import com.sk89q.worldguard.protection.managers.storage.MemoryRegionDatabase;
+import com.sk89q.worldguard.protection.regions.ProtectedCuboidRegion;
+import com.sk89q.worldguard.protection.regions.ProtectedRegion;
+import com.sk89q.worldguard.protection.regions.RegionContainer;
+import com.sk89q.worldguard.session.Session;
+import com.sk89q.worldguard.session.SessionManager;
+import com.sk89q.worldguard.session.handler.Handler;
+import org.bukkit.Bukkit;
+import org.bukkit.Server;
+import org.bukkit.World;
+import org.bukkit.entity.Player;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.plugin.PluginManager;
+import org.bukkit.scheduler.BukkitScheduler;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.logging.Logger;
+
+/**
+ * In-memory stand-ins for the server, plugins, players and regions, so that the benchmarks
+ * run without a Minecraft server. WorldGuard's own classes are used for the regions and flags,
+ * only its platform (sessions, region container) is replaced. Only the methods used by the
+ * registry return something meaningful, everything else returns a default value.
+ */
+final class BenchmarkEnvironment {
+    private static final Logger LOGGER = Logger.getLogger("RegionFlagTrackerBenchmark");
+    private static final Plugin WORLDGUARD_PLUGIN = createPlugin("WorldGuard", true);
+    private static final Plugin LIBRARY_PLUGIN = createPlugin("BKCommonLib", true);
+    private static final World WORLD = createWorld("benchmark_world");
+    /** Tasks scheduled to run every tick */
+    private static final List<Runnable> repeatingTasks = new ArrayList<>();
+    /** Session handler factories registered in the session manager */
+    private static final List<Handler.Factory<? extends Handler>> handlerFactories = new ArrayList<>();
+    private static SessionManager sessionManager = null;
+    private static RegionManager regionManager = null;
+    private static boolean initialized = false;
+
+    private BenchmarkEnvironment() {
+    }
+
+    /**
+     * Installs a stand-in server with WorldGuard installed, and a stand-in WorldGuard platform
+     * with a single world. The registry then uses the WorldGuard implementation. Must be done
+     * before the registry is first used.
+     */
+    public static synchronized void init() {
+        if (!initialized) {
+            initialized = true;
+            if (Bukkit.getServer() == null) {
+                final PluginManager pluginManager = createStandIn(PluginManager.class, (name, args) -> {
+                    if (name.equals("getPlugin") && "WorldGuard".equals(args[0])) {
+                        return WORLDGUARD_PLUGIN;
+                    } else if (name.equals("getPlugins")) {
+                        return new Plugin[] { WORLDGUARD_PLUGIN, LIBRARY_PLUGIN };
+                    } else {
+                        return null;
+                    }
+                });
+                final BukkitScheduler scheduler = createStandIn(BukkitScheduler.class, (name, args) -> {
+                    if (name.equals("scheduleSyncRepeatingTask") && args[1] instanceof Runnable) {
+                        repeatingTasks.add((Runnable) args[1]);
+                        return repeatingTasks.size();
+                    } else {
+                        return null;
+                    }
+                });
+                Bukkit.setServer(createStandIn(Server.class, (name, args) -> {
+                    if (name.equals("getPluginManager")) {
+                        return pluginManager;
+                    } else if (name.equals("getScheduler")) {
+                        return scheduler;
+                    } else if (name.equals("isPrimaryThread")) {
+                        return Boolean.TRUE;
+                    } else {
+                        return null;
+                    }
+                }));
+            }
+
+            regionManager = new RegionManager(new MemoryRegionDatabase(),
+                    new HashMapIndex.Factory(), WorldGuard.getInstance().getFlagRegistry());
+            sessionManager = createStandIn(SessionManager.class, (name, args) -> {
+                if (name.equals("registerHandler")) {
+                    handlerFactories.add((Handler.Factory<?>) args[0]);
+                    return Boolean.TRUE;
+                } else if (name.equals("unregisterHandler")) {
+                    return handlerFactories.remove(args[0]);
+                } else {
+                    return null;
+                }
+            });
+            final RegionContainer regionContainer = new BenchmarkRegionContainer();
+            WorldGuard.getInstance().setPlatform(createStandIn(WorldGuardPlatform.class, (name, args) -> {
+                if (name.equals("getSessionManager")) {
+                    return sessionManager;
+                } else if (name.equals("getRegionContainer")) {
+                    return regionContainer;
+                } else {
+                    return null;
+                }
+            }));
+        }
+    }
+
+    /**
+     * Gets the plugin the registry is enabled with
+     *
+     * @return Library plugin
+     */
+    public static Plugin getLibraryPlugin() {
+        return LIBRARY_PLUGIN;
+    }
+
+    /**
+     * Gets the only world of the stand-in server
+     *
+     * @return World
+     */
+    public static World getWorld() {
+        return WORLD;
+    }
+
+    /**
+     * Gets the region manager of the only world. Regions added to it are seen by the registry.
+     *
+     * @return Region manager
+     */
+    public static RegionManager getRegionManager() {
+        return regionManager;
+    }
+
+    /**
+     * Runs all the tasks scheduled to run every tick once, like the server does every tick
+     */
+    public static void runTick() {
+        for (int i = 0; i < repeatingTasks.size(); i++) {
+            repeatingTasks.get(i).run();
+        }
+    }
+
+    /**
+     * Cancels all scheduled tasks, like the server does when the plugin that scheduled
+     * them disables. Should be called after the registry is disabled.
+     */
+    public static void cancelTasks() {
+        repeatingTasks.clear();
+    }
+
+    /**
+     * Creates a new session and the session handlers registered in the session manager
+     * for it, like WorldGuard does when a player joins. The handlers still have to be
+     * initialized.
+     *
+     * @return Session handlers
+     */
+    public static List<Handler> createSessionHandlers() {
+        final Session session = new Session(sessionManager);
+        final List<Handler> handlers = new ArrayList<>(handlerFactories.size());
+        for (Handler.Factory<? extends Handler> factory : handlerFactories) {
+            handlers.add(factory.create(session));
+        }
+        return handlers;
+    }
+
+    /**
+     * Creates a stand-in plugin that is not yet enabled, so that flags can be registered
+     *
+     * @param name Plugin name
+     * @return Plugin
+     */
+    public static Plugin createPlugin(final String name) {
+        return createPlugin(name, false);
+    }
+
+    private static Plugin createPlugin(final String name, final boolean enabled) {
+        return createStandIn(Plugin.class, (method, args) -> {
+            if (method.equals("getName")) {
+                return name;
+            } else if (method.equals("isEnabled")) {
+                return enabled;
+            } else {
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Creates a stand-in player that is online
+     *
+     * @param index Unique index of the player
+     * @return Player
+     */
+    public static Player createPlayer(final int index) {
+        final String name = "Player" + index;
+        final UUID uuid = new UUID(0L, index);
+        return createStandIn(Player.class, (method, args) -> {
+            if (method.equals("getName")) {
+                return name;
+            } else if (method.equals("getUniqueId")) {
+                return uuid;
+            } else if (method.equals("isValid") || method.equals("isOnline")) {
+                return Boolean.TRUE;
+            } else {
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Creates a cuboid region. Every region is a separate 16x16x16 cube.
+     *
+     * @param index Unique index of the region
+     * @return Region
+     */
+    public static ProtectedRegion createRegion(final int index) {
+        final int x = index << 4;
+        return new ProtectedCuboidRegion("region" + index,
+                BlockVector3.at(x, 0, 0), BlockVector3.at(x + 15, 15, 15));
+    }
+
+    private static World createWorld(final String name) {
+        final UUID uuid = UUID.nameUUIDFromBytes(name.getBytes());
+        return createStandIn(World.class, (method, args) -> {
+            if (method.equals("getName")) {
+                return name;
+            } else if (method.equals("getUID")) {
+                return uuid;
+            } else {
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Creates a stand-in implementation of an interface using a Proxy. Methods for which
+     * the handler returns null return the default value of the return type instead.
+     * Objects are only equal to themselves.
+     */
+    private static <T> T createStandIn(final Class<T> type, final StandInHandler handler) {
+        return type.cast(Proxy.newProxyInstance(BenchmarkEnvironment.class.getClassLoader(), new Class<?>[] { type },
+                (proxy, method, args) -> {
+                    final String name = method.getName();
+                    if (name.equals("equals") && args != null && args.length == 1) {
+                        return proxy == args[0];
+                    } else if (name.equals("hashCode") && args == null) {
+                        return System.identityHashCode(proxy);
+                    } else if (name.equals("toString") && args == null) {
+                        return type.getSimpleName() + "@" + Integer.toHexString(System.identityHashCode(proxy));
+                    }
+
+                    final Object result = handler.invoke(name, args);
+                    return (result != null) ? result : defaultValue(method.getReturnType());
+                }));
+    }
+
+    private static Object defaultValue(Class<?> type) {
+        if (type == boolean.class) {
+            return Boolean.FALSE;
+        } else if (type == int.class) {
+            return 0;
+        } else if (type == long.class) {
+            return 0L;
+        } else if (type == double.class) {
+            return 0.0;
+        } else if (type == float.class) {
+            return 0.0f;
+        } else if (type == short.class) {
+            return (short) 0;
+        } else if (type == byte.class) {
+            return (byte) 0;
+        } else if (type == char.class) {
+            return (char) 0;
+        } else if (type == Logger.class) {
+            return LOGGER;
+        } else if (type.isArray()) {
+            return Array.newInstance(type.getComponentType(), 0);
+        } else if (type == List.class || type == Collection.class) {
+            return Collections.emptyList();
+        } else if (type == Set.class) {
+            return Collections.emptySet();
+        } else if (type == Map.class) {
+            return Collections.emptyMap();
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     * Region container of the stand-in WorldGuard platform. Only the benchmark world has regions,
+     * which are never loaded from or saved to storage.
+     */
+    private static final class BenchmarkRegionContainer extends RegionContainer {
+        @Override
+        public RegionManager get(com.sk89q.worldedit.world.World world) {
+            return world.getName().equals(WORLD.getName()) ? regionManager : null;
+        }
+
+        public RegionManager load(com.sk89q.worldedit.world.World world) {
+            return get(world);
+        }
+
+        public void loadWorlds() {
+        }
+
+        public void autoMigrate() {
+        }
+    }
+
+    @FunctionalInterface
+    private interface StandInHandler {
+        Object invoke(String methodName, Object[] args);
+    }
+}
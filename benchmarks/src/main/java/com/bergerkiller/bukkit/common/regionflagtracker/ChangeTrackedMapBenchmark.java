@@ -0,0 +1,81 @@
+package com.bergerkiller.bukkit.common.regionflagtracker;
+
+import com.bergerkiller.bukkit.common.regionflagtracker.worldguard.WGRegionFlagsChangeTrackerFieldHack;
+import com.sk89q.worldguard.protection.flags.Flag;
+import com.sk89q.worldguard.protection.flags.IntegerFlag;
+import com.sk89q.worldguard.protection.regions.ProtectedRegion;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Measures the overhead the flags map installed by {@link WGRegionFlagsChangeTrackerFieldHack}
+ * adds to reading and writing flags of a region, compared to the original map of WorldGuard.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChangeTrackedMapBenchmark {
+    private static final Integer VALUE_A = 1000;
+    private static final Integer VALUE_B = 2000;
+
+    /** Whether the flags map of the region is replaced with the change-tracked map */
+    @Param({ "false", "true" })
+    public boolean hooked;
+
+    /** Whether the flag written is one that is tracked */
+    @Param({ "false", "true" })
+    public boolean trackedFlag;
+
+    private ProtectedRegion region;
+    private IntegerFlag flag;
+    private WGRegionFlagsChangeTrackerFieldHack changeTracker;
+    private final Consumer<Flag<?>> changedFlags = f -> {};
+    private boolean toggle;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        region = BenchmarkEnvironment.createRegion(0);
+        flag = new IntegerFlag("map-benchmark");
+        for (int i = 0; i < 8; i++) {
+            region.setFlag(new IntegerFlag("map-benchmark-other-" + i), i);
+        }
+        if (hooked) {
+            final boolean isTracked = trackedFlag;
+            changeTracker = new WGRegionFlagsChangeTrackerFieldHack(region, () -> {}, f -> isTracked);
+        }
+    }
+
+    @Benchmark
+    public void setFlag() {
+        toggle = !toggle;
+        region.setFlag(flag, toggle ? VALUE_A : VALUE_B);
+    }
+
+    @Benchmark
+    public Integer getFlag() {
+        return region.getFlag(flag);
+    }
+
+    @Benchmark
+    public boolean setFlagAndUpdate() {
+        toggle = !toggle;
+        region.setFlag(flag, toggle ? VALUE_A : VALUE_B);
+        return changeTracker != null && changeTracker.update(region, changedFlags);
+    }
+}
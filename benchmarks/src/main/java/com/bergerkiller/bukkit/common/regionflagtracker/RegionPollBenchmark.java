@@ -0,0 +1,109 @@
+package com.bergerkiller.bukkit.common.regionflagtracker;
+
+import com.bergerkiller.bukkit.common.regionflagtracker.worldguard.WGRegionFlagsChangeTracker;
+import com.bergerkiller.bukkit.common.regionflagtracker.worldguard.WGRegionFlagsChangeTrackerFallback;
+import com.bergerkiller.bukkit.common.regionflagtracker.worldguard.WGRegionFlagsChangeTrackerFieldHack;
+import com.sk89q.worldguard.protection.flags.Flag;
+import com.sk89q.worldguard.protection.flags.IntegerFlag;
+import com.sk89q.worldguard.protection.regions.ProtectedRegion;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Measures checking all tracked regions for flag changes once, which is the bulk of the
+ * work done every tick to keep flag values up to date. Done for a varying number of regions
+ * and flags set per region, using either change tracker.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RegionPollBenchmark {
+    @Param({ "100", "1000", "10000" })
+    public int regions;
+
+    @Param({ "1", "8", "32" })
+    public int flagsPerRegion;
+
+    @Param({ "fallback", "fieldhack" })
+    public String changeTracker;
+
+    private ProtectedRegion[] regionList;
+    private WGRegionFlagsChangeTracker[] changeTrackers;
+    private IntegerFlag[] flagList;
+    private final Consumer<Flag<?>> changedFlags = f -> {};
+    private int changeIndex;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        // Half the flags set in regions are tracked, like flags of other plugins would be
+        flagList = new IntegerFlag[flagsPerRegion];
+        Set<Flag<?>> trackedFlags = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (int i = 0; i < flagsPerRegion; i++) {
+            flagList[i] = new IntegerFlag("poll-benchmark-" + i);
+            if ((i & 1) == 0) {
+                trackedFlags.add(flagList[i]);
+            }
+        }
+        Predicate<Flag<?>> trackedFlagFilter = trackedFlags::contains;
+
+        regionList = new ProtectedRegion[regions];
+        changeTrackers = new WGRegionFlagsChangeTracker[regions];
+        for (int i = 0; i < regions; i++) {
+            regionList[i] = BenchmarkEnvironment.createRegion(i);
+            for (int f = 0; f < flagsPerRegion; f++) {
+                regionList[i].setFlag(flagList[f], i + f);
+            }
+            if (changeTracker.equals("fieldhack")) {
+                changeTrackers[i] = new WGRegionFlagsChangeTrackerFieldHack(regionList[i], () -> {}, trackedFlagFilter);
+            } else {
+                changeTrackers[i] = new WGRegionFlagsChangeTrackerFallback(regionList[i], trackedFlagFilter);
+            }
+        }
+    }
+
+    @Benchmark
+    public int pollUnchanged() {
+        return pollAll();
+    }
+
+    @Benchmark
+    public int pollOneChanged() {
+        // Change the first (tracked) flag of a different region every time
+        final int index = changeIndex;
+        changeIndex = (index + 1) % regions;
+        regionList[index].setFlag(flagList[0], regionList[index].getFlag(flagList[0]) + 1);
+        return pollAll();
+    }
+
+    private int pollAll() {
+        final ProtectedRegion[] regionList = this.regionList;
+        final WGRegionFlagsChangeTracker[] changeTrackers = this.changeTrackers;
+        int changed = 0;
+        for (int i = 0; i < regionList.length; i++) {
+            if (changeTrackers[i].update(regionList[i], changedFlags)) {
+                changed++;
+            }
+        }
+        return changed;
+    }
+}
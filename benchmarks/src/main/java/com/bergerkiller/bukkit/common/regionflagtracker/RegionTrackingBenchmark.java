@@ -0,0 +1,236 @@
+package com.bergerkiller.bukkit.common.regionflagtracker;
+
+import com.sk89q.worldedit.bukkit.BukkitAdapter;
+import com.sk89q.worldedit.math.BlockVector3;
+import com.sk89q.worldedit.util.Location;
+import com.sk89q.worldguard.LocalPlayer;
+import com.sk89q.worldguard.WorldGuard;
+import com.sk89q.worldguard.bukkit.BukkitPlayer;
+import com.sk89q.worldguard.bukkit.WorldGuardPlugin;
+import com.sk89q.worldguard.protection.ApplicableRegionSet;
+import com.sk89q.worldguard.protection.flags.Flag;
+import com.sk89q.worldguard.protection.managers.RegionManager;
+import com.sk89q.worldguard.protection.regions.GlobalProtectedRegion;
+import com.sk89q.worldguard.protection.regions.ProtectedCuboidRegion;
+import com.sk89q.worldguard.protection.regions.ProtectedRegion;
+import com.sk89q.worldguard.session.MoveType;
+import com.sk89q.worldguard.session.handler.Handler;
+import org.bukkit.entity.Player;
+import org.bukkit.plugin.Plugin;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the WorldGuard registry with many players in many regions. Every tick the tracked
+ * regions are checked for flag changes, and the players inside regions that changed query
+ * their flags again. When a player crosses a region boundary, WorldGuard calls the session
+ * handler of the registry, which queries all flags that could have changed at once.<br>
+ * <br>
+ * Regions are grouped into zones that are their parent, and set half the flags themselves.
+ * The other flags are inherited from the zone, or from the global region.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RegionTrackingBenchmark {
+    /** Number of regions in every zone */
+    private static final int REGIONS_PER_ZONE = 16;
+
+    @Param({ "100", "1000" })
+    public int players;
+
+    @Param({ "1000", "10000" })
+    public int regions;
+
+    @Param({ "1", "16" })
+    public int flags;
+
+    private RegionFlagRegistryBaseImpl registry;
+    private Flag<Integer>[] worldguardFlags;
+    private SimulatedPlayer[] playerList;
+    private int editIndex = 0;
+    private int moveIndex = 0;
+    private int editValue = 0;
+    private long listenerCalls = 0;
+
+    @Setup(Level.Trial)
+    @SuppressWarnings("unchecked")
+    public void setup() throws Exception {
+        BenchmarkEnvironment.init();
+        registry = (RegionFlagRegistryBaseImpl) RegionFlagRegistry.instance();
+        if (!(registry instanceof RegionFlagRegistryWorldGuard)) {
+            throw new IllegalStateException("WorldGuard registry is not used");
+        }
+
+        Plugin plugin = BenchmarkEnvironment.createPlugin("RegionTrackingBenchmark");
+        RegionFlag.OfInteger[] flagList = new RegionFlag.OfInteger[flags];
+        worldguardFlags = new Flag[flags];
+        for (int i = 0; i < flags; i++) {
+            flagList[i] = RegionFlag.OfInteger.create("tracking-benchmark-" + System.identityHashCode(this) + "-" + i);
+            registry.register(plugin, flagList[i]);
+            worldguardFlags[i] = (Flag<Integer>) WorldGuard.getInstance().getFlagRegistry().get(flagList[i].name());
+        }
+        registry.enable(BenchmarkEnvironment.getLibraryPlugin());
+
+        // Global region and zones set all flags, regions only half of them
+        final RegionManager regionManager = BenchmarkEnvironment.getRegionManager();
+        GlobalProtectedRegion global = new GlobalProtectedRegion(ProtectedRegion.GLOBAL_REGION);
+        for (Flag<Integer> flag : worldguardFlags) {
+            global.setFlag(flag, 0);
+        }
+        regionManager.addRegion(global);
+        ProtectedRegion zone = null;
+        for (int i = 0; i < regions; i++) {
+            if ((i % REGIONS_PER_ZONE) == 0) {
+                final int x = i << 4;
+                zone = new ProtectedCuboidRegion("zone" + (i / REGIONS_PER_ZONE),
+                        BlockVector3.at(x, 0, 0), BlockVector3.at(x + (REGIONS_PER_ZONE << 4) - 1, 15, 15));
+                for (Flag<Integer> flag : worldguardFlags) {
+                    zone.setFlag(flag, i);
+                }
+                regionManager.addRegion(zone);
+            }
+
+            ProtectedRegion region = BenchmarkEnvironment.createRegion(i);
+            region.setPriority(1);
+            region.setParent(zone);
+            for (int f = (i & 1); f < flags; f += 2) {
+                region.setFlag(worldguardFlags[f], i);
+            }
+            regionManager.addRegion(region);
+        }
+
+        // Players are spread over the regions, and start in the first of the two regions they move between
+        playerList = new SimulatedPlayer[players];
+        for (int i = 0; i < players; i++) {
+            final Player player = BenchmarkEnvironment.createPlayer(i);
+            for (RegionFlag.OfInteger flag : flagList) {
+                registry.track(player, flag).addListener(t -> listenerCalls++);
+            }
+            final int region = (int) ((long) i * regions / players);
+            playerList[i] = new SimulatedPlayer(player, region, (region + 1) % regions);
+        }
+
+        // Let the registry settle after all regions were tracked
+        for (int i = 0; i < 10; i++) {
+            BenchmarkEnvironment.runTick();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() {
+        registry.disable();
+        BenchmarkEnvironment.cancelTasks();
+        final RegionManager regionManager = BenchmarkEnvironment.getRegionManager();
+        for (String id : new HashSet<>(regionManager.getRegions().keySet())) {
+            regionManager.removeRegion(id);
+        }
+    }
+
+    /**
+     * Runs the update task of the registry while no flags change
+     */
+    @Benchmark
+    public void tickUnchanged() {
+        BenchmarkEnvironment.runTick();
+    }
+
+    /**
+     * Changes a flag of a region a player is inside of, then runs the update task of the
+     * registry, which notices the change and queries the flag again for the players inside
+     */
+    @Benchmark
+    public void tickWithFlagEdit() {
+        final SimulatedPlayer player = playerList[editIndex];
+        if (++editIndex == playerList.length) {
+            editIndex = 0;
+        }
+        final ProtectedRegion region = player.atSecondRegion ? player.secondRegion : player.firstRegion;
+        region.setFlag(worldguardFlags[editValue % worldguardFlags.length], editValue++);
+        BenchmarkEnvironment.runTick();
+    }
+
+    /**
+     * Moves the next player to the other of its two regions, like WorldGuard does when
+     * the player crosses a region boundary
+     */
+    @Benchmark
+    public boolean crossBoundary() {
+        final SimulatedPlayer player = playerList[moveIndex];
+        if (++moveIndex == playerList.length) {
+            moveIndex = 0;
+        }
+        return player.move();
+    }
+
+    /**
+     * Online player with a session, that moves back and forth between two neighbouring regions
+     */
+    private static final class SimulatedPlayer {
+        private final LocalPlayer localPlayer;
+        private final List<Handler> handlers;
+        private final ProtectedRegion firstRegion, secondRegion;
+        private final Location firstLocation, secondLocation;
+        private final ApplicableRegionSet firstSet, secondSet;
+        /** Regions entered and exited moving from the first to the second region */
+        private final Set<ProtectedRegion> enteredSecond, exitedSecond;
+        private boolean atSecondRegion = false;
+
+        public SimulatedPlayer(Player player, int firstRegionIndex, int secondRegionIndex) {
+            final RegionManager regionManager = BenchmarkEnvironment.getRegionManager();
+            final com.sk89q.worldedit.world.World world = BukkitAdapter.adapt(BenchmarkEnvironment.getWorld());
+            this.localPlayer = new BukkitPlayer((WorldGuardPlugin) null, player);
+            this.firstRegion = regionManager.getRegion("region" + firstRegionIndex);
+            this.secondRegion = regionManager.getRegion("region" + secondRegionIndex);
+            this.firstLocation = new Location(world, (firstRegionIndex << 4) + 8.5, 8.0, 8.5);
+            this.secondLocation = new Location(world, (secondRegionIndex << 4) + 8.5, 8.0, 8.5);
+            this.firstSet = regionManager.getApplicableRegions(BlockVector3.at((firstRegionIndex << 4) + 8, 8, 8));
+            this.secondSet = regionManager.getApplicableRegions(BlockVector3.at((secondRegionIndex << 4) + 8, 8, 8));
+            this.enteredSecond = new HashSet<>(this.secondSet.getRegions());
+            this.enteredSecond.removeAll(this.firstSet.getRegions());
+            this.exitedSecond = new HashSet<>(this.firstSet.getRegions());
+            this.exitedSecond.removeAll(this.secondSet.getRegions());
+
+            this.handlers = BenchmarkEnvironment.createSessionHandlers();
+            for (Handler handler : this.handlers) {
+                handler.initialize(this.localPlayer, this.firstLocation, this.firstSet);
+            }
+        }
+
+        public boolean move() {
+            boolean result = true;
+            if (atSecondRegion) {
+                for (Handler handler : this.handlers) {
+                    result &= handler.onCrossBoundary(this.localPlayer, this.secondLocation, this.firstLocation,
+                            this.firstSet, this.exitedSecond, this.enteredSecond, MoveType.MOVE);
+                }
+            } else {
+                for (Handler handler : this.handlers) {
+                    result &= handler.onCrossBoundary(this.localPlayer, this.firstLocation, this.secondLocation,
+                            this.secondSet, this.enteredSecond, this.exitedSecond, MoveType.MOVE);
+                }
+            }
+            atSecondRegion = !atSecondRegion;
+            return result;
+        }
+    }
+}
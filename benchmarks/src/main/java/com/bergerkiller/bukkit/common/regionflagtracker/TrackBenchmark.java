@@ -0,0 +1,97 @@
+package com.bergerkiller.bukkit.common.regionflagtracker;
+
+import org.bukkit.entity.Player;
+import org.bukkit.plugin.Plugin;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures looking up existing trackers with {@link RegionFlagRegistry#track(Player, RegionFlag)},
+ * for a varying number of players and registered flags. Lookups cycle through all players
+ * and flags, so that the cost of cache misses is included.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TrackBenchmark {
+    @Param({ "1", "100", "1000" })
+    public int players;
+
+    @Param({ "1", "16", "64" })
+    public int flags;
+
+    private RegionFlagRegistry registry;
+    private Player[] playerList;
+    private RegionFlag.OfInteger[] flagList;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        BenchmarkEnvironment.init();
+        registry = RegionFlagRegistry.instance();
+
+        Plugin plugin = BenchmarkEnvironment.createPlugin("TrackBenchmark");
+        flagList = new RegionFlag.OfInteger[flags];
+        for (int i = 0; i < flags; i++) {
+            flagList[i] = RegionFlag.OfInteger.create("track-benchmark-" + System.identityHashCode(this) + "-" + i);
+            registry.register(plugin, flagList[i]);
+        }
+
+        playerList = new Player[players];
+        for (int i = 0; i < players; i++) {
+            playerList[i] = BenchmarkEnvironment.createPlayer(i);
+            for (RegionFlag.OfInteger flag : flagList) {
+                registry.track(playerList[i], flag);
+            }
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int player = 0;
+        int flag = 0;
+
+        void advance(TrackBenchmark benchmark) {
+            if (++flag == benchmark.flagList.length) {
+                flag = 0;
+                if (++player == benchmark.playerList.length) {
+                    player = 0;
+                }
+            }
+        }
+    }
+
+    @Benchmark
+    public RegionFlagTracker<Integer> trackGeneric(Cursor cursor) {
+        cursor.advance(this);
+        return registry.track(playerList[cursor.player], (RegionFlag<Integer>) flagList[cursor.flag]);
+    }
+
+    @Benchmark
+    public int trackAndReadInt(Cursor cursor) {
+        cursor.advance(this);
+        return registry.track(playerList[cursor.player], flagList[cursor.flag]).getAsInt(0);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public RegionFlagTracker<Integer> trackGenericConcurrent(Cursor cursor) {
+        cursor.advance(this);
+        return registry.track(playerList[cursor.player], (RegionFlag<Integer>) flagList[cursor.flag]);
+    }
+}
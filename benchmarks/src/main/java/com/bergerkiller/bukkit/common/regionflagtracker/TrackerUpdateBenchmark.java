@@ -0,0 +1,85 @@
+package com.bergerkiller.bukkit.common.regionflagtracker;
+
+import org.bukkit.entity.Player;
+import org.bukkit.plugin.Plugin;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures updating the value of a tracker, which is done for every flag queried. When the
+ * value changes the listeners are called, and the global listeners and value index are
+ * looked up in the registry.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TrackerUpdateBenchmark {
+    private static final Integer VALUE_A = 1000;
+    private static final Integer VALUE_B = 2000;
+    private static final String STRING_A = "a";
+    private static final String STRING_B = "b";
+
+    @Param({ "0", "1", "8" })
+    public int listeners;
+
+    private RegionFlagTracker<String> stringTracker;
+    private RegionFlagTracker.OfInteger intTracker;
+    private boolean toggle;
+    private long listenerCalls;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        BenchmarkEnvironment.init();
+        RegionFlagRegistry registry = RegionFlagRegistry.instance();
+        Plugin plugin = BenchmarkEnvironment.createPlugin("TrackerUpdateBenchmark");
+        RegionFlag<String> stringFlag = RegionFlag.ofString("update-benchmark-string");
+        RegionFlag.OfInteger intFlag = RegionFlag.OfInteger.create("update-benchmark-int");
+        registry.register(plugin, stringFlag);
+        registry.register(plugin, intFlag);
+
+        Player player = BenchmarkEnvironment.createPlayer(0);
+        stringTracker = registry.track(player, stringFlag);
+        intTracker = registry.track(player, intFlag);
+        for (int i = 0; i < listeners; i++) {
+            stringTracker.addListener(t -> listenerCalls++);
+            intTracker.addListener(t -> listenerCalls++);
+        }
+    }
+
+    @Benchmark
+    public void updateChangedGeneric() {
+        toggle = !toggle;
+        stringTracker.updateValue(toggle ? STRING_A : STRING_B);
+    }
+
+    @Benchmark
+    public void updateChangedInt() {
+        toggle = !toggle;
+        intTracker.updateValue(toggle ? VALUE_A : VALUE_B);
+    }
+
+    @Benchmark
+    public void updateUnchangedGeneric() {
+        stringTracker.updateValue(STRING_A);
+    }
+
+    @Benchmark
+    public void updateUnchangedInt() {
+        intTracker.updateValue(VALUE_A);
+    }
+}
@@ -0,0 +1,416 @@
+package com.bergerkiller.bukkit.common.regionflagtracker;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Counters and timers of the work done by the registry implementation to keep flag values
+ * up to date. Only exists while metrics are enabled with
+ * {@link RegionFlagRegistryBaseImpl#setMetricsEnabled(boolean)}, when disabled the
+ * implementation records nothing at all.<br>
+ * <br>
+ * Recording is done on the main thread only, and does not allocate. Use
+ * {@link RegionFlagRegistryBaseImpl#getMetrics()} to take a snapshot of the counters.
+ */
+public final class RegionFlagMetrics {
+    /** Number of ticks of which the duration is remembered, for the percentiles */
+    public static final int TICK_HISTORY = 1200;
+    private final long startNanos = System.nanoTime();
+    private final long[] tickNanos = new long[TICK_HISTORY];
+    private int tickHistoryIndex = 0;
+    private long ticks = 0;
+    private long totalTickNanos = 0;
+    private long regionChecks = 0;
+    private long regionChanges = 0;
+    private long subjectRefreshes = 0;
+    private long maxSubjectRefreshesPerTick = 0;
+    private long subjectRefreshesThisTick = 0;
+    private long batchQueries = 0;
+    private long flagQueries = 0;
+    private long trackerUpdates = 0;
+    private long trackerUpdateNanos = 0;
+    private long listenerNanos = 0;
+    private int trackedRegions = 0;
+    private int trackedSubjects = 0;
+    /** Per-flag counters, indexed by slot */
+    private long[] flagQueriesBySlot = new long[0];
+    private long[] trackerUpdatesBySlot = new long[0];
+
+    RegionFlagMetrics() {
+    }
+
+    /**
+     * Records the end of a tick of the tracking engine
+     *
+     * @param nanos Time spent updating this tick
+     * @param trackedRegions Number of regions tracked at the end of the tick
+     * @param trackedSubjects Number of players and entities tracked at the end of the tick
+     */
+    public void recordTick(long nanos, int trackedRegions, int trackedSubjects) {
+        this.tickNanos[this.tickHistoryIndex] = nanos;
+        if (++this.tickHistoryIndex == TICK_HISTORY) {
+            this.tickHistoryIndex = 0;
+        }
+        this.ticks++;
+        this.totalTickNanos += nanos;
+        this.trackedRegions = trackedRegions;
+        this.trackedSubjects = trackedSubjects;
+        if (this.subjectRefreshesThisTick > this.maxSubjectRefreshesPerTick) {
+            this.maxSubjectRefreshesPerTick = this.subjectRefreshesThisTick;
+        }
+        this.subjectRefreshesThisTick = 0;
+    }
+
+    /**
+     * Records that a tracked region was checked for flag changes
+     *
+     * @param changed Whether flags of the region changed
+     */
+    public void recordRegionCheck(boolean changed) {
+        this.regionChecks++;
+        if (changed) {
+            this.regionChanges++;
+        }
+    }
+
+    /**
+     * Records that the flags of a player or entity were refreshed
+     */
+    public void recordSubjectRefresh() {
+        this.subjectRefreshes++;
+        this.subjectRefreshesThisTick++;
+    }
+
+    /**
+     * Records that the values of one or more flags were queried at once
+     */
+    public void recordBatchQuery() {
+        this.batchQueries++;
+    }
+
+    /**
+     * Records that the value of a flag was queried
+     *
+     * @param slot Slot of the flag
+     */
+    public void recordFlagQuery(int slot) {
+        this.flagQueries++;
+        if (slot >= this.flagQueriesBySlot.length) {
+            growSlots(slot);
+        }
+        if (slot >= 0) {
+            this.flagQueriesBySlot[slot]++;
+        }
+    }
+
+    /**
+     * Records that a tracker was updated with a new value, and the time it took to update it.
+     * This includes calling the listeners of the tracker if the value changed.
+     *
+     * @param slot Slot of the flag
+     * @param nanos Time spent updating the tracker and calling its listeners
+     */
+    public void recordTrackerUpdate(int slot, long nanos) {
+        this.trackerUpdates++;
+        this.trackerUpdateNanos += nanos;
+        if (slot >= this.trackerUpdatesBySlot.length) {
+            growSlots(slot);
+        }
+        if (slot >= 0) {
+            this.trackerUpdatesBySlot[slot]++;
+        }
+    }
+
+    /**
+     * Records the time spent calling the coalesced listeners of trackers. Does not include
+     * the listeners called right away, which are part of the tracker update time.
+     *
+     * @param nanos Time spent
+     */
+    public void recordListenerTime(long nanos) {
+        this.listenerNanos += nanos;
+    }
+
+    private void growSlots(int slot) {
+        this.flagQueriesBySlot = Arrays.copyOf(this.flagQueriesBySlot, Math.max(slot + 1, this.flagQueriesBySlot.length));
+        this.trackerUpdatesBySlot = Arrays.copyOf(this.trackerUpdatesBySlot, Math.max(slot + 1, this.trackerUpdatesBySlot.length));
+    }
+
+    // Called on the main thread by the registry
+    Snapshot snapshot(RegionFlag<?>[] flagsBySlot) {
+        final int numTicks = (int) Math.min(this.ticks, TICK_HISTORY);
+        final long[] sortedTickNanos = Arrays.copyOf(this.tickNanos, numTicks);
+        Arrays.sort(sortedTickNanos);
+
+        final Map<RegionFlag<?>, FlagSnapshot> flags = new LinkedHashMap<>();
+        for (int slot = 0; slot < flagsBySlot.length; slot++) {
+            if (flagsBySlot[slot] != null) {
+                flags.put(flagsBySlot[slot], new FlagSnapshot(
+                        (slot < this.flagQueriesBySlot.length) ? this.flagQueriesBySlot[slot] : 0,
+                        (slot < this.trackerUpdatesBySlot.length) ? this.trackerUpdatesBySlot[slot] : 0));
+            }
+        }
+
+        return new Snapshot(this, System.nanoTime() - this.startNanos, sortedTickNanos,
+                Collections.unmodifiableMap(flags));
+    }
+
+    /**
+     * Immutable copy of the metrics at a point in time. Counters are totals since metrics
+     * were enabled.
+     */
+    public static final class Snapshot {
+        private final long elapsedNanos;
+        private final long[] sortedTickNanos;
+        private final long ticks;
+        private final long totalTickNanos;
+        private final long regionChecks;
+        private final long regionChanges;
+        private final long subjectRefreshes;
+        private final long maxSubjectRefreshesPerTick;
+        private final long batchQueries;
+        private final long flagQueries;
+        private final long trackerUpdates;
+        private final long trackerUpdateNanos;
+        private final long listenerNanos;
+        private final int trackedRegions;
+        private final int trackedSubjects;
+        private final Map<RegionFlag<?>, FlagSnapshot> flags;
+
+        private Snapshot(RegionFlagMetrics metrics, long elapsedNanos, long[] sortedTickNanos, Map<RegionFlag<?>, FlagSnapshot> flags) {
+            this.elapsedNanos = elapsedNanos;
+            this.sortedTickNanos = sortedTickNanos;
+            this.ticks = metrics.ticks;
+            this.totalTickNanos = metrics.totalTickNanos;
+            this.regionChecks = metrics.regionChecks;
+            this.regionChanges = metrics.regionChanges;
+            this.subjectRefreshes = metrics.subjectRefreshes;
+            this.maxSubjectRefreshesPerTick = metrics.maxSubjectRefreshesPerTick;
+            this.batchQueries = metrics.batchQueries;
+            this.flagQueries = metrics.flagQueries;
+            this.trackerUpdates = metrics.trackerUpdates;
+            this.trackerUpdateNanos = metrics.trackerUpdateNanos;
+            this.listenerNanos = metrics.listenerNanos;
+            this.trackedRegions = metrics.trackedRegions;
+            this.trackedSubjects = metrics.trackedSubjects;
+            this.flags = flags;
+        }
+
+        /**
+         * Gets the time that passed since metrics were enabled
+         *
+         * @param unit Time unit
+         * @return Elapsed time
+         */
+        public long getElapsedTime(TimeUnit unit) {
+            return unit.convert(elapsedNanos, TimeUnit.NANOSECONDS);
+        }
+
+        /**
+         * Gets the number of ticks the tracking engine ran
+         *
+         * @return Tick count
+         */
+        public long getTicks() {
+            return ticks;
+        }
+
+        /**
+         * Gets the total time spent by the tracking engine every tick
+         *
+         * @param unit Time unit
+         * @return Total time
+         */
+        public long getTotalTickTime(TimeUnit unit) {
+            return unit.convert(totalTickNanos, TimeUnit.NANOSECONDS);
+        }
+
+        /**
+         * Gets a percentile of the time spent by the tracking engine in a single tick,
+         * over the last {@link RegionFlagMetrics#TICK_HISTORY} ticks.
+         *
+         * @param percentile Percentile, between 0.0 and 100.0. 50.0 is the median.
+         * @param unit Time unit
+         * @return Tick time at this percentile, 0 if no ticks ran yet
+         */
+        public long getTickTimePercentile(double percentile, TimeUnit unit) {
+            if (percentile < 0.0 || percentile > 100.0) {
+                throw new IllegalArgumentException("Percentile must be between 0 and 100");
+            }
+            if (sortedTickNanos.length == 0) {
+                return 0;
+            }
+            int index = (int) Math.ceil(percentile / 100.0 * sortedTickNanos.length) - 1;
+            index = Math.max(0, Math.min(sortedTickNanos.length - 1, index));
+            return unit.convert(sortedTickNanos[index], TimeUnit.NANOSECONDS);
+        }
+
+        /**
+         * Gets the number of times tracked regions were checked for flag changes
+         *
+         * @return Region check count
+         */
+        public long getRegionChecks() {
+            return regionChecks;
+        }
+
+        /**
+         * Gets the number of times a check found that flags of a tracked region changed
+         *
+         * @return Region change count
+         */
+        public long getRegionChanges() {
+            return regionChanges;
+        }
+
+        /**
+         * Gets the number of times the flags of a player or entity were refreshed,
+         * because flags changed or trackers were woken up
+         *
+         * @return Refresh count
+         */
+        public long getSubjectRefreshes() {
+            return subjectRefreshes;
+        }
+
+        /**
+         * Gets the largest number of refreshes of players or entities done in a single tick
+         *
+         * @return Maximum refresh count in a tick
+         */
+        public long getMaxSubjectRefreshesPerTick() {
+            return maxSubjectRefreshesPerTick;
+        }
+
+        /**
+         * Gets the number of times the values of flags were queried for a player or entity, or for
+         * a group of them standing in the same regions. A single query can query many flags at once.
+         *
+         * @return Query count
+         */
+        public long getBatchQueries() {
+            return batchQueries;
+        }
+
+        /**
+         * Gets the number of flag values queried in total
+         *
+         * @return Flag value query count
+         */
+        public long getFlagQueries() {
+            return flagQueries;
+        }
+
+        /**
+         * Gets the number of times trackers were updated with a queried value
+         *
+         * @return Tracker update count
+         */
+        public long getTrackerUpdates() {
+            return trackerUpdates;
+        }
+
+        /**
+         * Gets the total time spent updating trackers, including calling the listeners
+         * that are called right away when the value changes
+         *
+         * @param unit Time unit
+         * @return Tracker update time
+         */
+        public long getTrackerUpdateTime(TimeUnit unit) {
+            return unit.convert(trackerUpdateNanos, TimeUnit.NANOSECONDS);
+        }
+
+        /**
+         * Gets the total time spent calling the coalesced listeners of trackers, which are
+         * called once per tick. Not included in the {@link #getTrackerUpdateTime(TimeUnit) tracker update time}.
+         *
+         * @param unit Time unit
+         * @return Listener time
+         */
+        public long getListenerTime(TimeUnit unit) {
+            return unit.convert(listenerNanos, TimeUnit.NANOSECONDS);
+        }
+
+        /**
+         * Gets the number of regions that were tracked at the end of the last tick
+         *
+         * @return Tracked region count
+         */
+        public int getTrackedRegions() {
+            return trackedRegions;
+        }
+
+        /**
+         * Gets the number of players and entities that were tracked at the end of the last tick
+         *
+         * @return Tracked player and entity count
+         */
+        public int getTrackedSubjects() {
+            return trackedSubjects;
+        }
+
+        /**
+         * Gets the counters of every registered flag
+         *
+         * @return Unmodifiable map of flag counters by flag
+         */
+        public Map<RegionFlag<?>, FlagSnapshot> getFlags() {
+            return flags;
+        }
+
+        @Override
+        public String toString() {
+            return "RegionFlagMetrics{ticks=" + ticks +
+                    ", p50=" + getTickTimePercentile(50.0, TimeUnit.MICROSECONDS) + "us" +
+                    ", p95=" + getTickTimePercentile(95.0, TimeUnit.MICROSECONDS) + "us" +
+                    ", p99=" + getTickTimePercentile(99.0, TimeUnit.MICROSECONDS) + "us" +
+                    ", max=" + getTickTimePercentile(100.0, TimeUnit.MICROSECONDS) + "us" +
+                    ", regions=" + trackedRegions + ", subjects=" + trackedSubjects +
+                    ", regionChecks=" + regionChecks + ", regionChanges=" + regionChanges +
+                    ", refreshes=" + subjectRefreshes + ", queries=" + batchQueries +
+                    ", flagQueries=" + flagQueries + ", trackerUpdates=" + trackerUpdates +
+                    ", trackerUpdateTime=" + getTrackerUpdateTime(TimeUnit.MICROSECONDS) + "us" +
+                    ", listenerTime=" + getListenerTime(TimeUnit.MICROSECONDS) + "us}";
+        }
+    }
+
+    /**
+     * Counters of a single flag
+     */
+    public static final class FlagSnapshot {
+        private final long queries;
+        private final long trackerUpdates;
+
+        private FlagSnapshot(long queries, long trackerUpdates) {
+            this.queries = queries;
+            this.trackerUpdates = trackerUpdates;
+        }
+
+        /**
+         * Gets the number of times the value of this flag was queried
+         *
+         * @return Query count
+         */
+        public long getQueries() {
+            return queries;
+        }
+
+        /**
+         * Gets the number of times a tracker of this flag was updated with a queried value
+         *
+         * @return Tracker update count
+         */
+        public long getTrackerUpdates() {
+            return trackerUpdates;
+        }
+
+        @Override
+        public String toString() {
+            return "{queries=" + queries + ", trackerUpdates=" + trackerUpdates + "}";
+        }
+    }
+}
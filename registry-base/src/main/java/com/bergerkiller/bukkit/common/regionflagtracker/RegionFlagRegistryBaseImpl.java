@@ -1,6 +1,7 @@
 package com.bergerkiller.bukkit.common.regionflagtracker;
 
 import org.bukkit.Bukkit;
+import org.bukkit.entity.Entity;
 import org.bukkit.entity.Player;
 import org.bukkit.event.EventHandler;
 import org.bukkit.event.EventPriority;
@@ -11,11 +12,9 @@ import org.bukkit.event.server.PluginEnableEvent;
 import org.bukkit.plugin.Plugin;
 
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashSet;
-import java.util.Iterator;
+import java.util.Collection;
 import java.util.List;
-import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Predicate;
 
 /**
@@ -25,6 +24,10 @@ import java.util.function.Predicate;
 public abstract class RegionFlagRegistryBaseImpl extends RegionFlagRegistry {
     private boolean enabled = false;
     private boolean ready = false;
+    private volatile long updateTimeBudgetNanos = TimeUnit.MICROSECONDS.toNanos(200);
+    private volatile int maximumUpdateStaleness = 1;
+    /** Null while metrics are disabled, so that recording them costs a single null check */
+    private volatile RegionFlagMetrics metrics = null;
 
     /**
      * Same as {@link RegionFlagRegistry#instance()} but as the implementation base type
@@ -59,48 +62,25 @@ public abstract class RegionFlagRegistryBaseImpl extends RegionFlagRegistry {
             public void onPluginBeforeDisable(PluginDisableEvent event) {
                 // Unregister registered flags owned by this plugin
                 // The WorldGuard registered flags stay around (in case of a hot reload)
-                Plugin disabledPlugin = event.getPlugin();
+                // Only the flags and trackers of this plugin are touched, as this fires for
+                // every plugin on shutdown.
                 synchronized (RegionFlagRegistryBaseImpl.this) {
-                    List<RegisteredRegionFlag<?>> handlersToUnregister = Collections.emptyList();
-                    Set<RegionFlag<?>> unregisteredFlags = Collections.emptySet();
-                    for (Iterator<RegisteredRegionFlag<?>> iter = registeredFlags.iterator(); iter.hasNext();) {
-                        RegisteredRegionFlag<?> registeredFlag = iter.next();
-                        if (registeredFlag.plugin == disabledPlugin) {
-                            iter.remove();
-
-                            {
-                                if (handlersToUnregister.isEmpty()) {
-                                    handlersToUnregister = new ArrayList<>();
-                                }
-                                handlersToUnregister.add(registeredFlag);
-                            }
-                            {
-                                if (unregisteredFlags.isEmpty()) {
-                                    unregisteredFlags = new HashSet<>();
-                                }
-                                unregisteredFlags.add(registeredFlag.flag);
-                            }
-                        }
-                    }
+                    List<RegisteredRegionFlag<?>> flagsToUnregister = getRegisteredFlags(event.getPlugin());
+                    if (!flagsToUnregister.isEmpty()) {
+                        // Disable any change handlers we had registered for it
+                        unregisterHandlers(flagsToUnregister);
 
-                    // Remove player-tied trackers for this unregistered flag
-                    if (!unregisteredFlags.isEmpty()) {
-                        for (Iterator<RegionFlagTracker<?>> trackerIter = trackers.values().iterator(); trackerIter.hasNext();) {
-                            if (unregisteredFlags.contains(trackerIter.next().getFlag())) {
-                                trackerIter.remove();
-                            }
-                        }
+                        // Remove player-tied trackers for this unregistered flag, and free up the slot
+                        flagsToUnregister.forEach(RegionFlagRegistryBaseImpl.this::releaseSlot);
                     }
-
-                    // Disable any change handlers we had registered for it
-                    handlersToUnregister.forEach(RegisteredRegionFlag::unregisterHandler);
                 }
             }
 
             @EventHandler(priority = EventPriority.MONITOR)
             public void onPlayerQuit(PlayerQuitEvent event) {
                 // Cleanup trackers of this player
-                removeTrackersOfPlayer(event.getPlayer());
+                removeTrackers(event.getPlayer());
+                RegionFlagRegistryBaseImpl.this.onPlayerQuit(event.getPlayer());
             }
         }, libraryPlugin);
 
@@ -120,9 +100,16 @@ public abstract class RegionFlagRegistryBaseImpl extends RegionFlagRegistry {
         }
     }
 
-    private synchronized void removeTrackersOfPlayer(Player player) {
-        for (RegisteredRegionFlag<?> registeredFlag : registeredFlags) {
-            trackers.remove(new PlayerFlagKey(player, registeredFlag.flag));
+    /**
+     * Removes all the trackers of a player that quit, or an entity that was removed
+     *
+     * @param entity Player or Entity
+     */
+    protected final synchronized void removeTrackers(Entity entity) {
+        TrackerTable table = trackers.get(entity);
+        if (table != null && table.entity == entity) {
+            unlinkTrackerTable(table);
+            trackers.remove(entity, table);
         }
     }
 
@@ -133,12 +120,141 @@ public abstract class RegionFlagRegistryBaseImpl extends RegionFlagRegistry {
         enabled = false;
         if (ready) {
             ready = false;
-            for (RegisteredRegionFlag<?> registeredFlag : registeredFlags) {
-                registeredFlag.unregisterHandler();
-            }
+            unregisterHandlers(registeredFlags);
         }
-        registeredFlags.clear();
         trackers.clear();
+        clearCoalescedListeners();
+        for (RegisteredRegionFlag<?> registeredFlag : new ArrayList<>(registeredFlags)) {
+            releaseSlot(registeredFlag);
+        }
+    }
+
+    /**
+     * Unregisters the handlers of flags that are being un-registered. By default calls
+     * {@link RegisteredRegionFlag#unregisterHandler()} for every flag. Implementations can
+     * override this to unregister all handlers at once. Called while synchronized.
+     *
+     * @param registeredFlags Flags whose handlers to unregister
+     */
+    protected void unregisterHandlers(Collection<RegisteredRegionFlag<?>> registeredFlags) {
+        registeredFlags.forEach(RegisteredRegionFlag::unregisterHandler);
+    }
+
+    /**
+     * Sets the time that may be spent every tick checking regions for flag changes.
+     * When there are many regions to check, the checks are spread out over multiple ticks.
+     * Regions are always checked within the {@link #setMaximumUpdateStaleness(int) maximum staleness},
+     * even if this exceeds the time budget. By default 0.2 milliseconds.
+     *
+     * @param time Time budget
+     * @param unit Unit of the time budget
+     */
+    public void setUpdateTimeBudget(long time, TimeUnit unit) {
+        if (time < 0) {
+            throw new IllegalArgumentException("Time budget can not be negative");
+        }
+        updateTimeBudgetNanos = unit.toNanos(time);
+    }
+
+    /**
+     * Gets the time that may be spent every tick checking regions for flag changes
+     *
+     * @param unit Unit of the time budget to return
+     * @return Time budget
+     * @see #setUpdateTimeBudget(long, TimeUnit)
+     */
+    public long getUpdateTimeBudget(TimeUnit unit) {
+        return unit.convert(updateTimeBudgetNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Sets the maximum number of ticks that can pass before a region is checked again
+     * for flag changes. Regions whose flags do not change are checked less and less often,
+     * up to this maximum. By default 1 tick, which checks every region every tick. Raising
+     * this lowers the cost of many regions, but flag changes can then take up to this many
+     * ticks to be noticed.<br>
+     * <br>
+     * This also applies to regions whose flag changes are notified right away, which are
+     * checked within this time for WorldGuard replacing all their flags at once.
+     *
+     * @param ticks Maximum staleness in ticks, at least 1
+     */
+    public void setMaximumUpdateStaleness(int ticks) {
+        if (ticks < 1) {
+            throw new IllegalArgumentException("Maximum staleness must be at least 1 tick");
+        }
+        maximumUpdateStaleness = ticks;
+    }
+
+    /**
+     * Gets the maximum number of ticks that can pass before a region is checked again
+     * for flag changes.
+     *
+     * @return Maximum staleness in ticks
+     * @see #setMaximumUpdateStaleness(int)
+     */
+    public int getMaximumUpdateStaleness() {
+        return maximumUpdateStaleness;
+    }
+
+    /**
+     * Sets whether metrics of the work done to keep flag values up to date are recorded.
+     * Enabling metrics resets all counters. When disabled, nothing is recorded.
+     * By default disabled. Should be called on the main thread.
+     *
+     * @param enabled Whether to record metrics
+     */
+    public void setMetricsEnabled(boolean enabled) {
+        if (!enabled) {
+            metrics = null;
+        } else if (metrics == null) {
+            metrics = new RegionFlagMetrics();
+        }
+    }
+
+    /**
+     * Gets whether metrics are recorded
+     *
+     * @return True if metrics are enabled
+     * @see #setMetricsEnabled(boolean)
+     */
+    public boolean isMetricsEnabled() {
+        return metrics != null;
+    }
+
+    /**
+     * Takes a snapshot of the metrics recorded since they were enabled.
+     * Must be called on the main thread.
+     *
+     * @return Metrics snapshot
+     * @throws IllegalStateException If metrics are not enabled
+     */
+    public synchronized RegionFlagMetrics.Snapshot getMetrics() {
+        final RegionFlagMetrics metrics = this.metrics;
+        if (metrics == null) {
+            throw new IllegalStateException("Metrics are not enabled");
+        }
+        int numSlots = 0;
+        for (RegisteredRegionFlag<?> registeredFlag : registeredFlags) {
+            numSlots = Math.max(numSlots, registeredFlag.getSlot() + 1);
+        }
+        final RegionFlag<?>[] flagsBySlot = new RegionFlag<?>[numSlots];
+        for (RegisteredRegionFlag<?> registeredFlag : registeredFlags) {
+            if (registeredFlag.getSlot() >= 0) {
+                flagsBySlot[registeredFlag.getSlot()] = registeredFlag.flag;
+            }
+        }
+        return metrics.snapshot(flagsBySlot);
+    }
+
+    /**
+     * Gets the metrics to record the work done by the implementation into. Must only be
+     * used on the main thread.
+     *
+     * @return Metrics, or null if metrics are disabled
+     */
+    protected final RegionFlagMetrics getMetricsRecorder() {
+        return metrics;
     }
 
     @Override
@@ -150,6 +266,15 @@ public abstract class RegionFlagRegistryBaseImpl extends RegionFlagRegistry {
 
     protected abstract boolean isStateReady();
 
+    /**
+     * Called when a player quits the server, after the trackers of the player
+     * have been removed. Implementations should release any state kept for the player.
+     *
+     * @param player The player that quit
+     */
+    protected void onPlayerQuit(Player player) {
+    }
+
     /**
      * Called when the state goes to ready according to {@link #isStateReady()}
      * for the first time
@@ -4,47 +4,139 @@ import com.bergerkiller.bukkit.common.regionflagtracker.worldguard.WGRegionFlags
 import com.bergerkiller.bukkit.common.regionflagtracker.worldguard.WGRegionFlagsChangeTrackerFallback;
 import com.bergerkiller.bukkit.common.regionflagtracker.worldguard.WGRegionFlagsChangeTrackerFieldHack;
 import com.sk89q.worldedit.bukkit.BukkitAdapter;
+import com.sk89q.worldedit.math.BlockVector3;
 import com.sk89q.worldedit.util.Location;
+import com.sk89q.worldedit.world.World;
 import com.sk89q.worldguard.LocalPlayer;
 import com.sk89q.worldguard.WorldGuard;
+import com.sk89q.worldguard.domains.Association;
 import com.sk89q.worldguard.protection.ApplicableRegionSet;
+import com.sk89q.worldguard.protection.RegionResultSet;
+import com.sk89q.worldguard.protection.association.RegionAssociable;
 import com.sk89q.worldguard.protection.flags.BooleanFlag;
 import com.sk89q.worldguard.protection.flags.DoubleFlag;
 import com.sk89q.worldguard.protection.flags.Flag;
 import com.sk89q.worldguard.protection.flags.IntegerFlag;
+import com.sk89q.worldguard.protection.flags.RegionGroup;
+import com.sk89q.worldguard.protection.flags.RegionGroupFlag;
 import com.sk89q.worldguard.protection.flags.StateFlag;
 import com.sk89q.worldguard.protection.flags.StringFlag;
 import com.sk89q.worldguard.protection.flags.registry.FlagRegistry;
+import com.sk89q.worldguard.protection.managers.RegionManager;
+import com.sk89q.worldguard.protection.regions.ProtectedCuboidRegion;
 import com.sk89q.worldguard.protection.regions.ProtectedRegion;
+import com.sk89q.worldguard.protection.regions.RegionType;
 import com.sk89q.worldguard.session.MoveType;
 import com.sk89q.worldguard.session.Session;
 import com.sk89q.worldguard.session.SessionManager;
 import com.sk89q.worldguard.session.handler.FlagValueChangeHandler;
 import com.sk89q.worldguard.session.handler.Handler;
 import org.bukkit.Bukkit;
+import org.bukkit.entity.Entity;
+import org.bukkit.entity.Player;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.world.ChunkUnloadEvent;
+import org.bukkit.event.world.WorldUnloadEvent;
 import org.bukkit.plugin.Plugin;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.EnumMap;
-import java.util.HashSet;
+import java.util.HashMap;
 import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
-import java.util.Optional;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 import java.util.logging.Level;
 
 /**
  * Makes use of WorldGuard's session flag tracking logic to refresh the region-flag values.
  * Does a lot of extra logic, like keeping track of when the flags of regions (that players are in)
  * change and if so to refresh the flag query. It's all quite complicated because WorldGuard
- * sucks.
+ * sucks.<br>
+ * <br>
+ * A single session handler is registered for all flags. It keeps track of the values of all
+ * registered flags for a player, and only re-queries the flags that are set in the regions
+ * the player entered or exited. Entities that are not players have no session, so whether
+ * they moved to a different block is checked every tick instead. The same logic then finds
+ * the regions entered or exited, and re-queries only the flags set in those.
  */
 class RegionFlagRegistryWorldGuard extends RegionFlagRegistryBaseImpl {
+    private static final RegisteredWorldGuardRegionFlag<?, ?>[] NO_FLAGS = new RegisteredWorldGuardRegionFlag<?, ?>[0];
+    private static final TrackedSubject[] NO_SUBJECTS = new TrackedSubject[0];
+    private static final TrackedProtectedRegion[] NO_REGIONS = new TrackedProtectedRegion[0];
+    private static final int[] NO_INDICES = new int[0];
+    /**
+     * When region flag changes are notified, how often regions are verified at most. This detects when
+     * WorldGuard replaces the flags map, and when nobody is inside the region anymore. Regions are
+     * verified sooner when the maximum update staleness is lower than this.
+     */
+    private static final int NOTIFIED_REGION_VERIFY_INTERVAL = 200;
+    /** How often trackers that were not observed are put to sleep, so their flags are no longer queried */
+    private static final int UNOBSERVED_TRACKER_SWEEP_INTERVAL = 600;
+    /**
+     * How long regions that are no longer tracked keep their flags hooked, so that regions
+     * people walk in and out of often are not hooked and unhooked over and over
+     */
+    private static final int RELEASED_REGION_UNHOOK_DELAY = 1200;
+    /** How often released regions are checked whether they can be unhooked */
+    private static final int RELEASED_REGION_SWEEP_INTERVAL = 100;
     private Plugin libraryPlugin = null;
     private final Map<RegionFlag.Type, FlagMapper<?, ?>> flagMappers = new EnumMap<>(RegionFlag.Type.class);
     private final Map<ProtectedRegion, TrackedProtectedRegion> trackedRegions = new IdentityHashMap<>();
-
+    /** Same regions as trackedRegions, as a list */
+    private final List<TrackedProtectedRegion> trackedRegionList = new ArrayList<>();
+    /** Regions no longer tracked whose flags are still hooked, until the unhook delay passes */
+    private final Map<ProtectedRegion, TrackedProtectedRegion> releasedRegions = new IdentityHashMap<>();
+    /** Released regions to unhook, re-used */
+    private final List<TrackedProtectedRegion> regionsToUnhook = new ArrayList<>();
+    /** Tracked subject of every player and entity, so their regions can be left when they are removed */
+    private final Map<Entity, TrackedSubject> subjects = new IdentityHashMap<>();
+    /** Subjects of entities that are not players, whose movement is checked every tick */
+    private final List<EntitySubject> entitySubjects = new ArrayList<>();
+    /** Re-used when checking the movement of entities */
+    private final org.bukkit.Location entityLocation = new org.bukkit.Location(null, 0.0, 0.0, 0.0);
+    private final List<ProtectedRegion> enteredRegions = new ArrayList<>();
+    private final List<ProtectedRegion> exitedRegions = new ArrayList<>();
+    /** Decides when tracked regions are checked for changes */
+    private final RegionPollScheduler pollScheduler = new RegionPollScheduler();
+    /** Regions whose flags were changed, as notified by the change tracker. Filled from any thread. */
+    private final Queue<TrackedProtectedRegion> changedRegions = new ConcurrentLinkedQueue<>();
+    /** Dormant trackers that were read, and must be brought up to date. Filled from any thread. */
+    private final Queue<RegionFlagTracker<?>> trackersToWake = new ConcurrentLinkedQueue<>();
+    /** Set while a subject is querying and updating flag values, to detect re-entry */
+    private boolean isQuerying = false;
+    /** Subjects that must refresh the flags marked as changed, re-used every tick */
+    private final List<TrackedSubject> subjectsToRefresh = new ArrayList<>();
+    /** Collects the slots of the flags that changed in a single region, re-used */
+    private final Consumer<Flag<?>> changedFlagCollector = this::collectChangedFlag;
+    private boolean[] changedFlagSlots = new boolean[0];
+    private boolean changedAllFlags = false;
+    private int currentTick = 0;
+    private final ValueTrackerFactory sessionFactory = new ValueTrackerFactory(this);
+    private boolean sessionFactoryRegistered = false;
+    private volatile boolean refreshAllSubjects = false;
+    /** Flags whose values are tracked by the session handler, indexed by slot. Copy-on-write. */
+    private volatile RegisteredWorldGuardRegionFlag<?, ?>[] activeFlags = NO_FLAGS;
+    /** Maps WorldGuard flags and region group flags to the active flag. Copy-on-write. */
+    private volatile Map<Flag<?>, RegisteredWorldGuardRegionFlag<?, ?>> activeFlagsByWorldGuardFlag = Collections.emptyMap();
+    /** Caches the values of flags at locations, by chunk section */
+    private final SectionValueCache sectionValueCache = new SectionValueCache(this);
+    /** Used on the main thread to query the values of many flags at once */
+    private final FlagBatchQuery batchQuery = new FlagBatchQuery();
+    /** Used on the main thread to refresh subjects standing in the same regions together */
+    private final GroupedRefresh groupedRefresh = new GroupedRefresh();
     public RegionFlagRegistryWorldGuard() {
         flagMappers.put(RegionFlag.Type.BOOLEAN, new UnaryFlagMapper<Boolean>() {
             @Override
@@ -116,7 +208,24 @@ class RegionFlagRegistryWorldGuard extends RegionFlagRegistryBaseImpl {
 
     @Override
     protected void onStateIsReady(final Plugin libraryPlugin) {
+        synchronized (this) {
+            if (!sessionFactoryRegistered) {
+                sessionFactoryRegistered = true;
+                WorldGuard.getInstance().getPlatform().getSessionManager().registerHandler(sessionFactory, null);
+            }
+        }
         Bukkit.getScheduler().scheduleSyncRepeatingTask(libraryPlugin, this::updateTrackedRegions, 1L, 1L);
+        Bukkit.getPluginManager().registerEvents(new Listener() {
+            @EventHandler(priority = EventPriority.MONITOR)
+            public void onChunkUnload(ChunkUnloadEvent event) {
+                sectionValueCache.evictChunk(event.getWorld(), event.getChunk().getX(), event.getChunk().getZ());
+            }
+
+            @EventHandler(priority = EventPriority.MONITOR)
+            public void onWorldUnload(WorldUnloadEvent event) {
+                sectionValueCache.evictWorld(event.getWorld());
+            }
+        }, libraryPlugin);
         libraryPlugin.getLogger().info("[RegionFlagTracker] Region flags will be tracked from WorldGuard");
     }
 
@@ -129,80 +238,467 @@ class RegionFlagRegistryWorldGuard extends RegionFlagRegistryBaseImpl {
     @Override
     public synchronized void disable() {
         super.disable();
+        if (sessionFactoryRegistered) {
+            sessionFactoryRegistered = false;
+            WorldGuard.getInstance().getPlatform().getSessionManager().unregisterHandler(sessionFactory);
+        }
+        // Give WorldGuard its own flags maps back, so its flag reads and writes no longer go through ours
+        unhookRegions(trackedRegionList);
+        unhookRegions(releasedRegions.values());
         trackedRegions.clear();
+        trackedRegionList.clear();
+        releasedRegions.clear();
+        changedRegions.clear();
+        trackersToWake.clear();
+        sectionValueCache.clear();
+        pollScheduler.clear();
+        subjects.clear();
+        entitySubjects.clear();
     }
 
+    // Called every tick
     private void updateTrackedRegions() {
-        Set<ValueTrackerHandler<?, ?>> changedHandlers = Collections.emptySet();
-        final Iterator<TrackedProtectedRegion> iter = this.trackedRegions.values().iterator();
-        while (iter.hasNext()) {
-            final TrackedProtectedRegion.UpdateResult result = iter.next().update();
-            if (result.cleanupRegion) {
-                iter.remove();
+        final int tick = ++this.currentTick;
+        final RegionFlagMetrics metrics = getMetricsRecorder();
+        final long startTime = (metrics == null) ? 0L : System.nanoTime();
+
+        // Regions whose flags changed, as notified by the change tracker
+        TrackedProtectedRegion changedRegion;
+        while ((changedRegion = this.changedRegions.poll()) != null) {
+            if (changedRegion.isTracked()) {
+                updateTrackedRegion(changedRegion);
             }
-            else {
-                if (result.handlersToRefresh.isEmpty()) {
-                    continue;
+        }
+
+        // Regions that are due to be checked for changes, within the time budget
+        this.pollScheduler.run(this, tick, getUpdateTimeBudget(TimeUnit.NANOSECONDS));
+
+        // Entities that are not players have no WorldGuard session, so check whether they moved
+        updateEntitySubjects();
+
+        // When flags are registered or observed by global listeners later on,
+        // all players online must query those. This includes players not inside any region.
+        if (this.refreshAllSubjects) {
+            this.refreshAllSubjects = false;
+            for (TrackedSubject subject : this.subjects.values()) {
+                subject.scheduleRefresh(null, true);
+            }
+        }
+
+        // Dormant trackers that were read since the previous tick must be updated
+        RegionFlagTracker<?> trackerToWake;
+        while ((trackerToWake = this.trackersToWake.poll()) != null) {
+            wakeTracker(trackerToWake, false);
+        }
+
+        // Stop updating the trackers that nobody looked at for a while
+        if ((tick % UNOBSERVED_TRACKER_SWEEP_INTERVAL) == 0) {
+            sweepUnobservedTrackers();
+        }
+
+        // Drop expired cached sections so the regions they use can be released,
+        // and unhook the flags of regions that were not tracked again for a while
+        if ((tick % RELEASED_REGION_SWEEP_INTERVAL) == 0) {
+            sectionValueCache.expireSections();
+            unhookReleasedRegions(tick - RELEASED_REGION_UNHOOK_DELAY);
+        }
+
+        // Refresh the flags that changed of all the subjects scheduled
+        // Listeners can schedule more subjects, which are added to the end of this list
+        final List<TrackedSubject> subjectsToRefresh = this.subjectsToRefresh;
+        if (!subjectsToRefresh.isEmpty()) {
+            try {
+                int start = 0;
+                while (start < subjectsToRefresh.size()) {
+                    final int end = subjectsToRefresh.size();
+                    this.groupedRefresh.refresh(this, subjectsToRefresh, start, end);
+                    start = end;
+                }
+            } finally {
+                subjectsToRefresh.clear();
+            }
+        }
+
+        // Value changes of this tick, including those of players that moved since the
+        // previous tick, are sent to the coalesced listeners last
+        if (metrics == null) {
+            dispatchCoalescedListeners();
+        } else {
+            final long dispatchStartTime = System.nanoTime();
+            dispatchCoalescedListeners();
+            final long endTime = System.nanoTime();
+            metrics.recordListenerTime(endTime - dispatchStartTime);
+            metrics.recordTick(endTime - startTime, this.trackedRegionList.size(), this.subjects.size());
+        }
+    }
+
+    private void updateEntitySubjects() {
+        final List<EntitySubject> entitySubjects = this.entitySubjects;
+        int i = 0;
+        while (i < entitySubjects.size()) {
+            final EntitySubject subject = entitySubjects.get(i);
+            if (subject.updatePosition()) {
+                i++;
+            } else {
+                removeEntitySubject(subject); // Moves the last subject into this index
+            }
+        }
+    }
+
+    private void addEntitySubject(final EntitySubject subject) {
+        subject.listIndex = this.entitySubjects.size();
+        this.entitySubjects.add(subject);
+        this.subjects.put(subject.entity, subject);
+    }
+
+    private void removeEntitySubject(final EntitySubject subject) {
+        final int index = subject.listIndex;
+        if (index < 0) {
+            return;
+        }
+
+        // Swap-remove, move the last subject in the list into the removed subject's place
+        final EntitySubject last = this.entitySubjects.remove(this.entitySubjects.size() - 1);
+        if (last != subject) {
+            last.listIndex = index;
+            this.entitySubjects.set(index, last);
+        }
+        subject.listIndex = -1;
+        subject.currentRegionSet = null; // In case a refresh is still scheduled
+        subject.leaveAllRegions(true);
+        this.subjects.remove(subject.entity, subject);
+
+        // The entity died or was unloaded, its trackers are no longer needed
+        removeTrackers(subject.entity);
+    }
+
+    private TrackedProtectedRegion.UpdateResult updateTrackedRegion(TrackedProtectedRegion trackedRegion) {
+        final TrackedProtectedRegion.UpdateResult result = trackedRegion.update(this.changedFlagCollector);
+        final RegionFlagMetrics metrics = getMetricsRecorder();
+        if (metrics != null && result != TrackedProtectedRegion.UpdateResult.CLEANUP) {
+            metrics.recordRegionCheck(result == TrackedProtectedRegion.UpdateResult.CHANGED);
+        }
+        if (result == TrackedProtectedRegion.UpdateResult.CLEANUP) {
+            untrackRegion(trackedRegion);
+        } else if (result == TrackedProtectedRegion.UpdateResult.CHANGED) {
+            for (int i = 0; i < trackedRegion.subjectCount; i++) {
+                trackedRegion.subjects[i].scheduleRefresh(this.changedFlagSlots, this.changedAllFlags);
+            }
+            trackedRegion.invalidateCachedSections();
+        }
+
+        // Reset for the next region
+        Arrays.fill(this.changedFlagSlots, false);
+        this.changedAllFlags = false;
+        return result;
+    }
+
+    private void collectChangedFlag(Flag<?> worldguardFlag) {
+        if (worldguardFlag == null) {
+            this.changedAllFlags = true;
+            return;
+        }
+
+        final RegisteredWorldGuardRegionFlag<?, ?> flag = this.activeFlagsByWorldGuardFlag.get(worldguardFlag);
+        final int slot = (flag == null) ? -1 : flag.getSlot();
+        if (slot >= 0) {
+            if (slot >= this.changedFlagSlots.length) {
+                this.changedFlagSlots = Arrays.copyOf(this.changedFlagSlots, Math.max(slot + 1, this.activeFlags.length));
+            }
+            this.changedFlagSlots[slot] = true;
+        }
+    }
+
+    private boolean isTrackedFlag(Flag<?> worldguardFlag) {
+        return this.activeFlagsByWorldGuardFlag.containsKey(worldguardFlag);
+    }
+
+    private synchronized void activateFlag(RegisteredWorldGuardRegionFlag<?, ?> flag) {
+        RegisteredWorldGuardRegionFlag<?, ?>[] newActiveFlags = this.activeFlags;
+        int slot = flag.getSlot();
+        if (slot < 0) {
+            return;
+        } else if (slot >= newActiveFlags.length) {
+            newActiveFlags = Arrays.copyOf(newActiveFlags, slot + 1);
+        } else {
+            newActiveFlags = newActiveFlags.clone();
+        }
+        newActiveFlags[slot] = flag;
+        this.activeFlags = newActiveFlags;
+        this.activeFlagsByWorldGuardFlag = mapActiveFlags(newActiveFlags);
+
+        // Players already online must query the new flag as well
+        this.refreshAllSubjects = true;
+    }
+
+    private synchronized void deactivateFlag(RegisteredWorldGuardRegionFlag<?, ?> flag) {
+        deactivateFlags(Collections.singletonList(flag));
+    }
+
+    @Override
+    protected void unregisterHandlers(Collection<RegisteredRegionFlag<?>> registeredFlags) {
+        deactivateFlags(registeredFlags);
+    }
+
+    // Deactivates all flags at once, so the active flags are only copied and mapped once
+    private synchronized void deactivateFlags(Collection<? extends RegisteredRegionFlag<?>> flags) {
+        RegisteredWorldGuardRegionFlag<?, ?>[] newActiveFlags = null;
+        for (RegisteredRegionFlag<?> flag : flags) {
+            int slot = flag.getSlot();
+            if (slot >= 0 && slot < this.activeFlags.length && this.activeFlags[slot] == flag) {
+                if (newActiveFlags == null) {
+                    newActiveFlags = this.activeFlags.clone();
                 }
-                if (changedHandlers.isEmpty()) {
-                    changedHandlers = new HashSet<ValueTrackerHandler<?, ?>>();
+                newActiveFlags[slot] = null;
+            }
+        }
+        if (newActiveFlags != null) {
+            this.activeFlags = newActiveFlags;
+            this.activeFlagsByWorldGuardFlag = mapActiveFlags(newActiveFlags);
+        }
+    }
+
+    private static Map<Flag<?>, RegisteredWorldGuardRegionFlag<?, ?>> mapActiveFlags(RegisteredWorldGuardRegionFlag<?, ?>[] activeFlags) {
+        Map<Flag<?>, RegisteredWorldGuardRegionFlag<?, ?>> result = new IdentityHashMap<>();
+        for (RegisteredWorldGuardRegionFlag<?, ?> flag : activeFlags) {
+            if (flag != null) {
+                result.put(flag.worldguardFlag, flag);
+                if (flag.worldguardFlag.getRegionGroupFlag() != null) {
+                    result.put(flag.worldguardFlag.getRegionGroupFlag(), flag);
                 }
-                changedHandlers.addAll(result.handlersToRefresh);
             }
         }
-        changedHandlers.forEach(ValueTrackerHandler::refresh);
+        return result;
     }
 
     @Override
-    @SuppressWarnings("unchecked")
-    protected <T> RegisteredRegionFlag<T> createNewFlag(Plugin plugin, RegionFlag<T> flag) {
-        FlagMapper<?, T> mapper = (FlagMapper<?, T>) flagMappers.get(flag.type());
+    protected List<RegisteredRegionFlag<?>> createNewFlags(Plugin plugin, List<RegionFlag<?>> flags) {
+        final FlagRegistry registry = WorldGuard.getInstance().getFlagRegistry();
+        final RegisteredRegionFlag<?>[] result = new RegisteredRegionFlag<?>[flags.size()];
+
+        // Look up flags that already exist by name (hot reload), and create the others
+        final Flag<?>[] createdFlags = new Flag<?>[flags.size()];
+        final List<Flag<?>> flagsToRegister = new ArrayList<>(flags.size());
+        for (int i = 0; i < result.length; i++) {
+            final RegionFlag<?> flag = flags.get(i);
+            try {
+                final Flag<?> existing = findFlag(registry, plugin, flag);
+                if (existing != null) {
+                    result[i] = createRegisteredFlag(plugin, flag, existing);
+                } else {
+                    createdFlags[i] = getFlagMapper(flag).create(flag.name());
+                    flagsToRegister.add(createdFlags[i]);
+                }
+            } catch (Throwable t) {
+                result[i] = createFailedFlag(plugin, flag, t);
+            }
+        }
 
+        // Register all new flags in one go. WorldGuard logs and skips flags whose name conflicts,
+        // and throws when flags are registered too late. Those flags are registered again
+        // one by one, so that the error is logged for the right flag.
+        boolean registeredAll;
         try {
-            return createNewFlagUnsafe(plugin, mapper, flag);
+            if (!flagsToRegister.isEmpty()) {
+                registry.registerAll(flagsToRegister);
+            }
+            registeredAll = true;
         } catch (Throwable t) {
-            plugin.getLogger().log(Level.WARNING, "Region Flag '" + flag.name() + " of type " + flag.type().name() + " could not be registered", t);
-            return new RegisteredRegionFlag<T>(plugin, flag);
+            registeredAll = false;
+        }
+        for (int i = 0; i < result.length; i++) {
+            final Flag<?> createdFlag = createdFlags[i];
+            if (createdFlag != null) {
+                final RegionFlag<?> flag = flags.get(i);
+                try {
+                    if (!registeredAll || registry.get(flag.name()) != createdFlag) {
+                        registry.register(createdFlag); // Can throw!
+                    }
+                    result[i] = createRegisteredFlag(plugin, flag, createdFlag);
+                } catch (Throwable t) {
+                    result[i] = createFailedFlag(plugin, flag, t);
+                }
+            }
+        }
+
+        return Arrays.asList(result);
+    }
+
+    private Flag<?> findFlag(FlagRegistry registry, Plugin plugin, RegionFlag<?> flag) {
+        Flag<?> worldguardFlag = registry.get(flag.name());
+        if (worldguardFlag == null) {
+            return null;
+        }
+
+        Flag<?> adapted = getFlagMapper(flag).adapt(worldguardFlag);
+        if (adapted != null) {
+            return adapted;
         }
+
+        // Incorrect type / already in use
+        throw new IllegalStateException("Region Flag " + flag.name() + " by plugin " + plugin.getName() +
+                " is already in use by another plugin with a conflicting type");
     }
 
-    private <T, R> RegisteredRegionFlag<T> createNewFlagUnsafe(Plugin plugin, FlagMapper<R, T> mapper, RegionFlag<T> flag) {
-        Flag<R> worldguardFlag = findOrRegisterFlag(plugin, mapper, flag);
-        return new RegisteredWorldGuardRegionFlag<T, R>(this, plugin, flag, worldguardFlag, mapper);
+    @SuppressWarnings("unchecked")
+    private <T> RegisteredRegionFlag<T> createRegisteredFlag(Plugin plugin, RegionFlag<T> flag, Flag<?> worldguardFlag) {
+        FlagMapper<Object, T> mapper = (FlagMapper<Object, T>) getFlagMapper(flag);
+        return new RegisteredWorldGuardRegionFlag<T, Object>(this, plugin, flag, (Flag<Object>) worldguardFlag, mapper);
     }
 
-    private <T, R> Flag<R> findOrRegisterFlag(Plugin plugin, FlagMapper<R, T> mapper, RegionFlag<T> flag) {
-        FlagRegistry registry = WorldGuard.getInstance().getFlagRegistry();
-        for (Flag<?> worldguardFlag: registry.getAll()) {
-            if (!worldguardFlag.getName().equals(flag.name())) {
-                continue;
-            }
+    private static <T> RegisteredRegionFlag<T> createFailedFlag(Plugin plugin, RegionFlag<T> flag, Throwable t) {
+        plugin.getLogger().log(Level.WARNING, "Region Flag '" + flag.name() + " of type " + flag.type().name() + " could not be registered", t);
+        return new RegisteredRegionFlag<T>(plugin, flag);
+    }
 
-            Flag<R> adapted = mapper.adapt(worldguardFlag);
-            if (adapted != null) {
-                return adapted;
-            }
+    private FlagMapper<?, ?> getFlagMapper(RegionFlag<?> flag) {
+        FlagMapper<?, ?> mapper = flagMappers.get(flag.type());
+        if (mapper == null) {
+            throw new IllegalArgumentException("Unsupported flag type: " + flag.type().name());
+        }
+        return mapper;
+    }
+
+    private ProtectedRegion getGlobalRegion(World world) {
+        if (world == null) {
+            return null;
+        }
+        RegionManager regionManager = getRegionManager(world);
+        return (regionManager == null) ? null : regionManager.getRegion(ProtectedRegion.GLOBAL_REGION);
+    }
+
+    private RegionManager getRegionManager(World world) {
+        return WorldGuard.getInstance().getPlatform().getRegionContainer().get(world);
+    }
+
+    @Override
+    protected void onObservedByAllPlayers(RegisteredRegionFlag<?> registeredFlag) {
+        // Players that did not track this flag yet must now query it
+        this.refreshAllSubjects = true;
+    }
 
-            // Incorrect type / already in use
-            throw new IllegalStateException("Region Flag " + flag.name() + " by plugin " + plugin.getName() +
-                    " is already in use by another plugin with a conflicting type");
+    @Override
+    protected void onDormantTrackerRead(RegionFlagTracker<?> tracker) {
+        // On the main thread the value can be brought up to date right away, so that the
+        // value read is correct. Not while already querying, as that would corrupt that query.
+        if (Bukkit.isPrimaryThread() && !this.isQuerying && this.libraryPlugin != null) {
+            wakeTracker(tracker, true);
+        } else {
+            this.trackersToWake.add(tracker);
         }
+    }
 
-        // Register it
-        Flag<R> worldguardFlag = mapper.create(flag.name());
-        registry.register(worldguardFlag); // Can throw!
-        return worldguardFlag;
+    private void wakeTracker(RegionFlagTracker<?> tracker, boolean refreshNow) {
+        tracker.wake();
+
+        // If WorldGuard did not create a session for the player yet, the value
+        // is queried when it does. The tracker is no longer dormant, so it will be.
+        final Entity entity = tracker.getEntity();
+        final TrackedSubject subject = this.subjects.get(entity);
+        if (subject != null) {
+            subject.refreshTracker(tracker.getFlag().slot, refreshNow);
+        } else if (!(entity instanceof Player) && entity.isValid()) {
+            // Entities are tracked from when any of their trackers is first read.
+            // Looking up the regions at its position queries all the flags observed.
+            final EntitySubject entitySubject = new EntitySubject(this, entity);
+            addEntitySubject(entitySubject);
+            if (!entitySubject.updatePosition()) {
+                removeEntitySubject(entitySubject);
+            }
+        }
     }
 
-    private Optional<TrackedProtectedRegion> trackRegionIfExists(final ProtectedRegion region) {
-        return Optional.ofNullable(this.trackedRegions.get(region));
+    @Override
+    protected void onPlayerQuit(Player player) {
+        TrackedSubject subject = this.subjects.remove(player);
+        if (subject != null) {
+            subject.leaveAllRegions(true);
+        }
     }
 
     private TrackedProtectedRegion trackRegion(final ProtectedRegion region) {
         if (libraryPlugin == null) {
             throw new IllegalStateException("Region tracking begun before enable()");
         }
-        return this.trackedRegions.computeIfAbsent(region, r -> new TrackedProtectedRegion(libraryPlugin, region));
+        TrackedProtectedRegion trackedRegion = this.trackedRegions.get(region);
+        if (trackedRegion == null) {
+            trackedRegion = this.releasedRegions.remove(region);
+            if (trackedRegion != null) {
+                // Still hooked. Subjects and sections that use it from now on query all values
+                // anyway, so changes made while it was not tracked can be discarded.
+                trackedRegion.discardChanges();
+            } else {
+                trackedRegion = new TrackedProtectedRegion(this, region);
+            }
+            trackedRegion.listIndex = this.trackedRegionList.size();
+            this.trackedRegionList.add(trackedRegion);
+            this.trackedRegions.put(region, trackedRegion);
+            this.pollScheduler.schedule(trackedRegion, this.currentTick, 1, getMaximumUpdateStaleness());
+        }
+        return trackedRegion;
+    }
+
+    private void untrackRegion(final TrackedProtectedRegion trackedRegion) {
+        final int index = trackedRegion.listIndex;
+        if (index < 0) {
+            return;
+        }
+
+        // Swap-remove, move the last region in the list into the removed region's place
+        final TrackedProtectedRegion last = this.trackedRegionList.remove(this.trackedRegionList.size() - 1);
+        if (last != trackedRegion) {
+            last.listIndex = index;
+            this.trackedRegionList.set(index, last);
+        }
+        trackedRegion.listIndex = -1;
+        this.trackedRegions.remove(trackedRegion.region);
+
+        // Keep the flags hooked for a while, in case the region is tracked again soon
+        trackedRegion.releasedTick = this.currentTick;
+        this.releasedRegions.put(trackedRegion.region, trackedRegion);
+    }
+
+    private void unhookReleasedRegions(int releasedBeforeTick) {
+        final List<TrackedProtectedRegion> regionsToUnhook = this.regionsToUnhook;
+        for (Iterator<TrackedProtectedRegion> iter = this.releasedRegions.values().iterator(); iter.hasNext();) {
+            final TrackedProtectedRegion trackedRegion = iter.next();
+            if (trackedRegion.releasedTick <= releasedBeforeTick) {
+                iter.remove();
+                regionsToUnhook.add(trackedRegion);
+            }
+        }
+        if (!regionsToUnhook.isEmpty()) {
+            try {
+                unhookRegions(regionsToUnhook);
+            } finally {
+                regionsToUnhook.clear();
+            }
+        }
+    }
+
+    /**
+     * Stops tracking flag changes of regions, restoring the flags maps of WorldGuard.
+     * Failures are logged once for all the regions.
+     *
+     * @param regions Regions to unhook
+     */
+    private void unhookRegions(Collection<TrackedProtectedRegion> regions) {
+        Throwable firstFailure = null;
+        int numFailures = 0;
+        for (TrackedProtectedRegion trackedRegion : regions) {
+            try {
+                trackedRegion.flagChangeTracker.cleanup(trackedRegion.region);
+            } catch (Throwable t) {
+                if (firstFailure == null) {
+                    firstFailure = t;
+                }
+                numFailures++;
+            }
+        }
+        if (firstFailure != null && this.libraryPlugin != null) {
+            this.libraryPlugin.getLogger().log(Level.WARNING, "[RegionFlagTracker] Failed to unhook the flags of " +
+                    numFailures + " region(s)", firstFailure);
+        }
     }
 
     /**
@@ -228,7 +724,6 @@ class RegionFlagRegistryWorldGuard extends RegionFlagRegistryBaseImpl {
         public final RegionFlagRegistryWorldGuard registry;
         public final Flag<R> worldguardFlag;
         public final FlagMapper<R, T> mapper;
-        private final ValueTrackerFactory<T, R> sessionFactory;
 
         public RegisteredWorldGuardRegionFlag(
                 final RegionFlagRegistryWorldGuard registry,
@@ -241,173 +736,1557 @@ class RegionFlagRegistryWorldGuard extends RegionFlagRegistryBaseImpl {
             this.registry = registry;
             this.worldguardFlag = worldguardFlag;
             this.mapper = mapper;
-            this.sessionFactory = new ValueTrackerFactory<>(this);
         }
 
         public void registerHandler() {
-            SessionManager sessionManager = WorldGuard.getInstance().getPlatform().getSessionManager();
-            sessionManager.registerHandler(this.sessionFactory, null);
+            registry.activateFlag(this);
         }
 
         public void unregisterHandler() {
-            SessionManager sessionManager = WorldGuard.getInstance().getPlatform().getSessionManager();
-            sessionManager.unregisterHandler(this.sessionFactory);
+            registry.deactivateFlag(this);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public T getValueAt(org.bukkit.Location location) {
+            Object rawValue = registry.sectionValueCache.getRawValue(this, location);
+            return (rawValue == null) ? null : mapper.marshalValue((R) rawValue);
+        }
+
+        /**
+         * Updates the tracker of this flag for a player or entity with a raw WorldGuard value
+         *
+         * @param entity Player or Entity whose tracker to update
+         * @param rawValue WorldGuard flag value, null if not set
+         */
+        @SuppressWarnings("unchecked")
+        public void updateTracker(Entity entity, Object rawValue) {
+            RegionFlagTracker<T> tracker = registry.getOrCreateTracker(entity, flag);
+            if (tracker.isDormant()) {
+                tracker.wake(); // Created because the flag is observed for all players
+            }
+            final RegionFlagMetrics metrics = registry.getMetricsRecorder();
+            final long startTime = (metrics == null) ? 0L : System.nanoTime();
+            if (rawValue == null) {
+                tracker.updateValue(null);
+            } else {
+                tracker.updateValue(mapper.marshalValue((R) rawValue));
+            }
+            if (metrics != null) {
+                metrics.recordTrackerUpdate(getSlot(), System.nanoTime() - startTime);
+            }
         }
     }
 
-    private static class ValueTrackerFactory<T, R> extends Handler.Factory<ValueTrackerHandler<T, R>> {
-        private final RegisteredWorldGuardRegionFlag<T, R> flag;
+    private static class ValueTrackerFactory extends Handler.Factory<ValueTrackerHandler> {
+        private final RegionFlagRegistryWorldGuard registry;
 
-        public ValueTrackerFactory(RegisteredWorldGuardRegionFlag<T, R> flag) {
-            this.flag = flag;
+        public ValueTrackerFactory(RegionFlagRegistryWorldGuard registry) {
+            this.registry = registry;
         }
 
         @Override
-        public ValueTrackerHandler<T, R> create(Session session) {
-            return new ValueTrackerHandler<>(session, this.flag);
+        public ValueTrackerHandler create(Session session) {
+            return new ValueTrackerHandler(session, this.registry);
         }
     }
 
-    private static class ValueTrackerHandler<T, R> extends Handler {
-        private final RegisteredWorldGuardRegionFlag<T, R> flag;
-        private LocalPlayer lastLocalPlayer;
-        private RegionFlagTracker<T> tracker;
-        private ApplicableRegionSet currentRegionSet;
-        private R lastValue;
+    /**
+     * Session handler of a player. Passes the regions the player enters and exits on to
+     * the tracked subject of that player.
+     */
+    private static class ValueTrackerHandler extends Handler {
+        private final PlayerSubject subject;
 
-        protected ValueTrackerHandler(final Session session, final RegisteredWorldGuardRegionFlag<T, R> flag) {
+        protected ValueTrackerHandler(final Session session, final RegionFlagRegistryWorldGuard registry) {
             super(session);
-            this.lastLocalPlayer = null;
-            this.tracker = null;
-            this.currentRegionSet = null;
-            this.flag = flag;
+            this.subject = new PlayerSubject(registry);
         }
 
-        private void updateTracker(final LocalPlayer player) {
-            if (this.lastLocalPlayer != player) {
-                this.lastLocalPlayer = player;
-                this.tracker = this.flag.registry.track(BukkitAdapter.adapt(player), this.flag.flag);
-            }
+        @Override
+        public void initialize(LocalPlayer player, Location current, ApplicableRegionSet set) {
+            this.subject.updatePlayer(player, current);
+            this.subject.initialize(set);
         }
 
         @Override
-        public void initialize(LocalPlayer player, Location current, ApplicableRegionSet set) {
-            R currentValue = set.queryValue(player, flag.worldguardFlag);
-            this.lastValue = currentValue;
-            if (this.currentRegionSet != null) {
-                for (final ProtectedRegion region : this.currentRegionSet) {
-                    this.flag.registry.trackRegionIfExists(region).ifPresent(tr -> tr.handlers.remove(this));
-                }
+        public boolean onCrossBoundary(final LocalPlayer player, final Location from, final Location to, final ApplicableRegionSet toSet, final Set<ProtectedRegion> entered, final Set<ProtectedRegion> exited, final MoveType moveType) {
+            final boolean sameWorld = from.getExtent().equals(to.getExtent());
+            if (entered.isEmpty() && exited.isEmpty() && sameWorld) { // sets don't include global regions - check if those changed
+                return true; // no changes to flags if regions didn't change
             }
+
+            this.subject.updatePlayer(player, to);
+            this.subject.updateRegions(toSet, entered, exited, sameWorld);
+            return true;
+        }
+    }
+
+    /**
+     * Keeps track of the values of all active flags for a single player or entity
+     */
+    private static abstract class TrackedSubject {
+        protected final RegionFlagRegistryWorldGuard registry;
+        protected Entity entity;
+        /** Subject the flags are queried for. Null for entities that are not players. */
+        protected RegionAssociable associable;
+        protected World world;
+        protected ApplicableRegionSet currentRegionSet;
+        /**
+         * Tracked regions this subject was added to, so it can leave them all when it is removed.
+         * For every region also stores the index of this subject in the subjects of that region.
+         */
+        private TrackedProtectedRegion[] joinedRegions = NO_REGIONS;
+        private int[] joinedRegionSubjectIndices = NO_INDICES;
+        protected int joinedRegionCount = 0;
+        /** For every slot, the flag whose value is stored in lastValues. Null if never queried. */
+        private RegisteredWorldGuardRegionFlag<?, ?>[] queriedFlags = NO_FLAGS;
+        private Object[] lastValues = new Object[0];
+        /** Re-used to mark the flags that must be queried, and to store the values queried */
+        private boolean[] flagsToQuery = new boolean[0];
+        private Object[] queriedValues = new Object[0];
+        /** Flags that must be queried again when refreshing, because they changed in a region */
+        private boolean[] flagsToRefresh = new boolean[0];
+        private boolean refreshAllFlags = false;
+        private boolean refreshScheduled = false;
+
+        protected TrackedSubject(final RegionFlagRegistryWorldGuard registry) {
+            this.registry = registry;
+            this.entity = null;
+            this.associable = null;
+            this.world = null;
+            this.currentRegionSet = null;
+        }
+
+        public void initialize(ApplicableRegionSet set) {
+            leaveAllRegions(false);
             this.currentRegionSet = set;
-            this.updateTracker(player);
             for (final ProtectedRegion region : set) {
-                this.flag.registry.trackRegion(region).handlers.add(this);
+                joinRegion(this.registry.trackRegion(region));
             }
 
-            if (currentValue == null) {
-                this.tracker.updateValue(null);
-            } else {
-                this.tracker.updateValue(this.flag.mapper.marshalValue(currentValue));
+            queryAllValues(true);
+        }
+
+        private void joinRegion(TrackedProtectedRegion trackedRegion) {
+            if (indexOfJoinedRegion(trackedRegion.region) != -1) {
+                return; // Already joined
+            }
+
+            final int index = this.joinedRegionCount++;
+            if (index == this.joinedRegions.length) {
+                final int newCapacity = Math.max(4, index * 2);
+                this.joinedRegions = Arrays.copyOf(this.joinedRegions, newCapacity);
+                this.joinedRegionSubjectIndices = Arrays.copyOf(this.joinedRegionSubjectIndices, newCapacity);
             }
+            this.joinedRegions[index] = trackedRegion;
+            this.joinedRegionSubjectIndices[index] = trackedRegion.addSubject(this, index);
         }
 
-        @Override
-        public boolean onCrossBoundary(final LocalPlayer player, final Location from, final Location to, final ApplicableRegionSet toSet, final Set<ProtectedRegion> entered, final Set<ProtectedRegion> exited, final MoveType moveType) {
-            if (entered.isEmpty() && exited.isEmpty()
-                    && from.getExtent().equals(to.getExtent())) { // sets don't include global regions - check if those changed
-                return true; // no changes to flags if regions didn't change
+        private void leaveRegion(ProtectedRegion region) {
+            final int index = indexOfJoinedRegion(region);
+            if (index != -1) {
+                leaveRegionAt(index);
+            }
+        }
+
+        private void leaveRegionAt(int index) {
+            // Remove this subject from the region
+            final TrackedProtectedRegion trackedRegion = this.joinedRegions[index];
+            trackedRegion.removeSubjectAt(this.joinedRegionSubjectIndices[index]);
+
+            // Swap-remove, move the last joined region into the removed region's place
+            // The region must be told where in this subject it can now be found
+            final int lastIndex = --this.joinedRegionCount;
+            if (index != lastIndex) {
+                final TrackedProtectedRegion last = this.joinedRegions[lastIndex];
+                final int lastSubjectIndex = this.joinedRegionSubjectIndices[lastIndex];
+                this.joinedRegions[index] = last;
+                this.joinedRegionSubjectIndices[index] = lastSubjectIndex;
+                last.subjectJoinedRegionIndices[lastSubjectIndex] = index;
+            }
+            this.joinedRegions[lastIndex] = null;
+        }
+
+        protected final ProtectedRegion getJoinedRegion(int index) {
+            return this.joinedRegions[index].region;
+        }
+
+        protected final int indexOfJoinedRegion(ProtectedRegion region) {
+            // Subjects are only inside a few regions at a time, so a linear search is fastest
+            for (int i = 0; i < this.joinedRegionCount; i++) {
+                if (this.joinedRegions[i].region == region) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Removes this subject from all the tracked regions it was added to
+         *
+         * @param untrackEmpty Whether to stop tracking regions nobody is inside of anymore right away,
+         *                     instead of when the region is next checked for changes
+         */
+        public void leaveAllRegions(boolean untrackEmpty) {
+            while (this.joinedRegionCount > 0) {
+                final TrackedProtectedRegion trackedRegion = this.joinedRegions[this.joinedRegionCount - 1];
+                leaveRegionAt(this.joinedRegionCount - 1);
+                if (untrackEmpty && trackedRegion.isUnused()) {
+                    this.registry.untrackRegion(trackedRegion);
+                }
             }
+        }
 
+        /**
+         * Updates the regions this subject is inside of, and queries the flags that could
+         * have changed because of it
+         *
+         * @param toSet Regions the subject is now inside of
+         * @param entered Regions that were entered
+         * @param exited Regions that were exited
+         * @param sameWorld Whether the subject is still in the same world
+         */
+        public void updateRegions(final ApplicableRegionSet toSet, final Collection<ProtectedRegion> entered, final Collection<ProtectedRegion> exited, final boolean sameWorld) {
             this.currentRegionSet = toSet;
-            this.updateTracker(player);
             for (final ProtectedRegion region : exited) {
-                this.flag.registry.trackRegionIfExists(region).ifPresent(tr -> tr.handlers.remove(this));
+                leaveRegion(region);
             }
             for (final ProtectedRegion region : entered) {
-                this.flag.registry.trackRegion(region).handlers.add(this);
+                joinRegion(this.registry.trackRegion(region));
             }
 
-            updateValue(toSet.queryValue(player, flag.worldguardFlag));
-            return true;
+            // When changing worlds, the global region changes, so all flags could have changed
+            if (!sameWorld) {
+                queryAllValues(false);
+                return;
+            }
+
+            // Only flags set in the regions entered or exited (or their parents) can have changed
+            // Flags that were never queried for this subject before are queried too.
+            final RegisteredWorldGuardRegionFlag<?, ?>[] activeFlags = this.registry.activeFlags;
+            final boolean[] flagsToQuery = prepareQuery(activeFlags.length);
+            final Map<Flag<?>, RegisteredWorldGuardRegionFlag<?, ?>> activeFlagsByWorldGuardFlag = this.registry.activeFlagsByWorldGuardFlag;
+            markFlagsToQuery(activeFlagsByWorldGuardFlag, entered, flagsToQuery);
+            markFlagsToQuery(activeFlagsByWorldGuardFlag, exited, flagsToQuery);
+            for (int slot = 0; slot < activeFlags.length; slot++) {
+                RegisteredWorldGuardRegionFlag<?, ?> flag = activeFlags[slot];
+                if (flag == null) {
+                    flagsToQuery[slot] = false;
+                } else if (this.queriedFlags[slot] != flag) {
+                    flagsToQuery[slot] = true;
+                }
+            }
+            queryValues(activeFlags, false);
+        }
+
+        /**
+         * Schedules this subject to be refreshed at the end of the current tick
+         *
+         * @param changedFlagSlots For every slot, whether the flag changed. Can be null if allFlags is true.
+         * @param allFlags Whether all flags must be refreshed
+         */
+        public void scheduleRefresh(boolean[] changedFlagSlots, boolean allFlags) {
+            if (allFlags) {
+                this.refreshAllFlags = true;
+            } else {
+                if (this.flagsToRefresh.length < changedFlagSlots.length) {
+                    this.flagsToRefresh = Arrays.copyOf(this.flagsToRefresh, changedFlagSlots.length);
+                }
+                for (int slot = 0; slot < changedFlagSlots.length; slot++) {
+                    if (changedFlagSlots[slot]) {
+                        this.flagsToRefresh[slot] = true;
+                    }
+                }
+            }
+            if (!this.refreshScheduled) {
+                this.refreshScheduled = true;
+                this.registry.subjectsToRefresh.add(this);
+            }
         }
 
         public void refresh() {
-            if (this.lastLocalPlayer == null || this.tracker == null || this.currentRegionSet == null) {
-                return;
+            final RegisteredWorldGuardRegionFlag<?, ?>[] activeFlags = this.registry.activeFlags;
+            if (prepareRefresh(activeFlags)) {
+                queryValues(activeFlags, false);
+            }
+        }
+
+        /**
+         * Marks the flags that must be queried to refresh this subject. Afterwards, either
+         * {@link #queryValues(RegisteredWorldGuardRegionFlag[], boolean)} must be called, or the values
+         * queried for a group of subjects that share the same regions must be applied using
+         * {@link #applyQueriedValues(RegisteredWorldGuardRegionFlag[], Object[])}.
+         *
+         * @param activeFlags Flags by slot
+         * @return True if there are flags to query
+         */
+        private boolean prepareRefresh(RegisteredWorldGuardRegionFlag<?, ?>[] activeFlags) {
+            final boolean refreshAllFlags = this.refreshAllFlags;
+            final boolean[] flagsToRefresh = this.flagsToRefresh;
+            this.refreshScheduled = false;
+            this.refreshAllFlags = false;
+            if (this.entity == null || this.currentRegionSet == null) {
+                Arrays.fill(flagsToRefresh, false);
+                return false;
             }
 
-            updateValue(this.currentRegionSet.queryValue(this.lastLocalPlayer, this.flag.worldguardFlag));
+            final boolean[] flagsToQuery = prepareQuery(activeFlags.length);
+            boolean hasFlagsToQuery = false;
+            for (int slot = 0; slot < activeFlags.length; slot++) {
+                final RegisteredWorldGuardRegionFlag<?, ?> flag = activeFlags[slot];
+                if (flag != null && (refreshAllFlags
+                        || (slot < flagsToRefresh.length && flagsToRefresh[slot])
+                        || this.queriedFlags[slot] != flag)
+                ) {
+                    flagsToQuery[slot] = true;
+                    hasFlagsToQuery = true;
+                }
+            }
+            Arrays.fill(flagsToRefresh, false);
+            if (hasFlagsToQuery) {
+                final RegionFlagMetrics metrics = this.registry.getMetricsRecorder();
+                if (metrics != null) {
+                    metrics.recordSubjectRefresh();
+                }
+                hasFlagsToQuery = forgetUnobservedFlags(activeFlags);
+            }
+            return hasFlagsToQuery;
         }
 
-        private void updateValue(R currentValue) {
-            if (currentValue == null && lastValue != null) {
-                this.tracker.updateValue(null);
-            } else if (currentValue != null && currentValue != lastValue) {
-                this.tracker.updateValue(this.flag.mapper.marshalValue(currentValue));
+        /**
+         * Updates the trackers of the flags marked by {@link #prepareRefresh(RegisteredWorldGuardRegionFlag[])}
+         * with values queried for a group of subjects. Flags that were queried for this subject
+         * in the meantime, because a listener moved it, are no longer marked and are skipped.
+         *
+         * @param activeFlags Flags by slot
+         * @param values Values queried, by slot
+         */
+        private void applyQueriedValues(RegisteredWorldGuardRegionFlag<?, ?>[] activeFlags, Object[] values) {
+            final boolean[] flagsToQuery = this.flagsToQuery;
+            final int numSlots = Math.min(activeFlags.length, flagsToQuery.length);
+            final boolean wasQuerying = this.registry.isQuerying;
+            this.registry.isQuerying = true;
+            try {
+                for (int slot = 0; slot < numSlots; slot++) {
+                    if (flagsToQuery[slot]) {
+                        flagsToQuery[slot] = false;
+                        updateValue(activeFlags[slot], values[slot], false);
+                    }
+                }
+            } finally {
+                this.registry.isQuerying = wasQuerying;
             }
-            lastValue = currentValue;
         }
-    }
 
-    private static final class TrackedProtectedRegion {
-        private static boolean IS_OPTIMIZED_FLAG_TRACKER_WORKING = true;
-        public final ProtectedRegion region;
-        public final Set<ValueTrackerHandler<?, ?>> handlers;
-        private WGRegionFlagsChangeTracker flagChangeTracker;
-        private int checkPlayersQuitCounter = 0;
+        /**
+         * Queries the value of a flag again and updates the tracker, even if the value did not change
+         *
+         * @param slot Slot of the flag
+         * @param refreshNow Whether to refresh right away, instead of at the end of the tick
+         */
+        public void refreshTracker(int slot, boolean refreshNow) {
+            if (slot >= 0 && slot < this.queriedFlags.length) {
+                this.queriedFlags[slot] = null; // Queried again because of this
+            }
+            if (refreshNow) {
+                refresh();
+            } else if (!this.refreshScheduled) {
+                this.refreshScheduled = true;
+                this.registry.subjectsToRefresh.add(this);
+            }
+        }
 
-        public TrackedProtectedRegion(Plugin libraryPlugin, ProtectedRegion region) {
-            this.handlers = new HashSet<>();
-            this.region = region;
-            this.flagChangeTracker = initFlagChangeTracker(libraryPlugin, region);
+        private boolean[] prepareQuery(int numSlots) {
+            if (this.queriedFlags.length < numSlots) {
+                this.queriedFlags = Arrays.copyOf(this.queriedFlags, numSlots);
+                this.lastValues = Arrays.copyOf(this.lastValues, numSlots);
+            }
+            if (this.flagsToQuery.length < numSlots) {
+                this.flagsToQuery = new boolean[numSlots];
+                this.queriedValues = new Object[numSlots];
+            }
+            return this.flagsToQuery;
         }
 
-        private static WGRegionFlagsChangeTracker initFlagChangeTracker(Plugin libraryPlugin, ProtectedRegion region) {
-            if (IS_OPTIMIZED_FLAG_TRACKER_WORKING) {
-                try {
-                    return new WGRegionFlagsChangeTrackerFieldHack(region);
-                } catch (WGRegionFlagsChangeTrackerFieldHack.OptimizationNotSupportedException ex) {
-                    IS_OPTIMIZED_FLAG_TRACKER_WORKING = false;
-                    libraryPlugin.getLogger().log(Level.WARNING, "[RegionFlagTracker] Could not optimize detection of region flag changes", ex);
-                }
+        private void queryAllValues(boolean force) {
+            final RegisteredWorldGuardRegionFlag<?, ?>[] activeFlags = this.registry.activeFlags;
+            final boolean[] flagsToQuery = prepareQuery(activeFlags.length);
+            for (int slot = 0; slot < activeFlags.length; slot++) {
+                flagsToQuery[slot] = (activeFlags[slot] != null);
             }
-            return new WGRegionFlagsChangeTrackerFallback(region);
+            queryValues(activeFlags, force);
         }
 
-        public UpdateResult update() {
-            // Every 40 ticks verify for all the trackers we got whether the player is still online
-            // When players log off, this is currently the only way to check for it unfortunately
-            if (++checkPlayersQuitCounter >= 40) {
-                checkPlayersQuitCounter = 0;
-                this.handlers.removeIf(handler -> handler.tracker != null && RegionFlagRegistry.hasPlayerQuit(handler.tracker.getPlayer()));
+        private void queryValues(RegisteredWorldGuardRegionFlag<?, ?>[] activeFlags, boolean force) {
+            final boolean[] flagsToQuery = this.flagsToQuery;
+            final Object[] queriedValues = this.queriedValues;
+            final int numSlots = activeFlags.length;
+            if (!forgetUnobservedFlags(activeFlags)) {
+                return;
             }
 
-            if (this.handlers.isEmpty()) {
-                return UpdateResult.DEFAULT_CLEANUP;
-            } else if (flagChangeTracker.update(region)) {
-                return new UpdateResult(false, this.handlers);
-            } else {
-                return UpdateResult.DEFAULT_KEEP;
+            final RegionFlagMetrics metrics = this.registry.getMetricsRecorder();
+            if (metrics != null) {
+                metrics.recordBatchQuery();
+                for (int slot = 0; slot < numSlots; slot++) {
+                    if (flagsToQuery[slot]) {
+                        metrics.recordFlagQuery(slot);
+                    }
+                }
+            }
+
+            final boolean wasQuerying = this.registry.isQuerying;
+            this.registry.isQuerying = true;
+            try {
+                this.registry.batchQuery.query(this.currentRegionSet, this.registry.getGlobalRegion(this.world),
+                        this.associable, activeFlags, this.registry.activeFlagsByWorldGuardFlag,
+                        flagsToQuery, queriedValues);
+
+                // Listeners fired when updating trackers could re-enter this subject,
+                // so the scratch arrays are reset before any of that happens.
+                for (int slot = 0; slot < numSlots; slot++) {
+                    if (flagsToQuery[slot]) {
+                        flagsToQuery[slot] = false;
+                        Object value = queriedValues[slot];
+                        queriedValues[slot] = null;
+                        updateValue(activeFlags[slot], value, force);
+                    }
+                }
+            } finally {
+                this.registry.isQuerying = wasQuerying;
+            }
+        }
+
+        /**
+         * Flags nobody observes for this subject are not queried. They are un-marked and forgotten,
+         * so that they are queried again once they are observed.
+         *
+         * @param activeFlags Flags by slot
+         * @return True if any flags are still marked to be queried
+         */
+        private boolean forgetUnobservedFlags(RegisteredWorldGuardRegionFlag<?, ?>[] activeFlags) {
+            final boolean[] flagsToQuery = this.flagsToQuery;
+            final TrackerTable table = this.registry.trackers.get(this.entity);
+            boolean hasFlagsToQuery = false;
+            for (int slot = 0; slot < activeFlags.length; slot++) {
+                if (flagsToQuery[slot]) {
+                    if (isObserved(table, activeFlags[slot])) {
+                        hasFlagsToQuery = true;
+                    } else {
+                        flagsToQuery[slot] = false;
+                        this.queriedFlags[slot] = null;
+                        this.lastValues[slot] = null;
+                    }
+                }
             }
+            return hasFlagsToQuery;
         }
 
-        private static class UpdateResult
-        {
-            public static final UpdateResult DEFAULT_CLEANUP;
-            public static final UpdateResult DEFAULT_KEEP;
-            public final boolean cleanupRegion;
-            public final Set<ValueTrackerHandler<?, ?>> handlersToRefresh;
+        private boolean isObserved(TrackerTable table, RegisteredWorldGuardRegionFlag<?, ?> flag) {
+            if (this.entity instanceof Player && flag.isObservedByAllPlayers()) {
+                return true;
+            }
+            if (table == null || table.entity != this.entity) {
+                return false;
+            }
+            final RegionFlagTracker<?> tracker = table.get(flag.getSlot());
+            return tracker != null && tracker.getFlag() == flag.flag && !tracker.isDormant();
+        }
 
-            public UpdateResult(final boolean cleanupRegion, final Set<ValueTrackerHandler<?, ?>> handlersToRefresh) {
-                this.cleanupRegion = cleanupRegion;
-                this.handlersToRefresh = handlersToRefresh;
+        private void updateValue(RegisteredWorldGuardRegionFlag<?, ?> flag, Object currentValue, boolean force) {
+            final int slot = flag.getSlot();
+            final Object lastValue = this.lastValues[slot];
+            this.lastValues[slot] = currentValue;
+            if (force || this.queriedFlags[slot] != flag) {
+                this.queriedFlags[slot] = flag;
+                flag.updateTracker(this.entity, currentValue);
+            } else if (currentValue == null ? lastValue != null : currentValue != lastValue) {
+                flag.updateTracker(this.entity, currentValue);
             }
+        }
 
-            static {
-                DEFAULT_CLEANUP = new UpdateResult(true, Collections.emptySet());
-                DEFAULT_KEEP = new UpdateResult(false, Collections.emptySet());
+        private static void markFlagsToQuery(
+                final Map<Flag<?>, RegisteredWorldGuardRegionFlag<?, ?>> activeFlagsByWorldGuardFlag,
+                final Collection<ProtectedRegion> regions,
+                final boolean[] flagsToQuery
+        ) {
+            for (final ProtectedRegion region : regions) {
+                // Flags are inherited from parent regions, so those must be checked too
+                for (ProtectedRegion r = region; r != null; r = r.getParent()) {
+                    for (final Flag<?> worldguardFlag : r.getFlags().keySet()) {
+                        final RegisteredWorldGuardRegionFlag<?, ?> flag = activeFlagsByWorldGuardFlag.get(worldguardFlag);
+                        if (flag != null && flag.getSlot() >= 0 && flag.getSlot() < flagsToQuery.length) {
+                            flagsToQuery[flag.getSlot()] = true;
+                        }
+                    }
+                }
             }
         }
     }
+
+    /**
+     * Tracked subject of a player. WorldGuard tells the session handler of the player
+     * what regions are entered and exited.
+     */
+    private static final class PlayerSubject extends TrackedSubject {
+        private LocalPlayer lastLocalPlayer = null;
+
+        public PlayerSubject(final RegionFlagRegistryWorldGuard registry) {
+            super(registry);
+        }
+
+        public void updatePlayer(final LocalPlayer player, final Location location) {
+            if (this.lastLocalPlayer != player) {
+                this.lastLocalPlayer = player;
+                this.associable = player;
+                this.entity = BukkitAdapter.adapt(player);
+                this.registry.subjects.put(this.entity, this);
+            }
+            if (location.getExtent() instanceof World) {
+                this.world = (World) location.getExtent();
+            }
+        }
+    }
+
+    /**
+     * Tracked subject of an entity that is not a player. WorldGuard has no sessions for these,
+     * so every tick it is checked whether the entity moved to a different block. Only then
+     * are the regions at the new position looked up, and the regions entered and exited
+     * found out. Flags are queried for no particular player.
+     */
+    private static final class EntitySubject extends TrackedSubject {
+        /** Index in the entity subject list, -1 if no longer tracked */
+        private int listIndex = -1;
+        private org.bukkit.World lastWorld = null;
+        private int lastBlockX, lastBlockY, lastBlockZ;
+
+        public EntitySubject(final RegionFlagRegistryWorldGuard registry, final Entity entity) {
+            super(registry);
+            this.entity = entity;
+        }
+
+        /**
+         * Checks whether the entity moved to a different block since the last time. If so,
+         * updates the regions the entity is inside of and queries the flags that could have changed.
+         *
+         * @return False if the entity is no longer valid, and must no longer be tracked
+         */
+        public boolean updatePosition() {
+            if (!this.entity.isValid()) {
+                return false;
+            }
+
+            final org.bukkit.Location location = this.entity.getLocation(this.registry.entityLocation);
+            final org.bukkit.World bukkitWorld = location.getWorld();
+            final int blockX = location.getBlockX();
+            final int blockY = location.getBlockY();
+            final int blockZ = location.getBlockZ();
+            final boolean sameWorld = (bukkitWorld == this.lastWorld);
+            if (sameWorld && blockX == this.lastBlockX && blockY == this.lastBlockY && blockZ == this.lastBlockZ) {
+                return true; // Regions can not have changed
+            }
+            this.lastWorld = bukkitWorld;
+            this.lastBlockX = blockX;
+            this.lastBlockY = blockY;
+            this.lastBlockZ = blockZ;
+
+            final World world = BukkitAdapter.adapt(bukkitWorld);
+            final RegionManager regionManager = this.registry.getRegionManager(world);
+            if (regionManager == null) {
+                // Regions are disabled in this world, keep the values as they are
+                return true;
+            }
+            this.world = world;
+
+            final ApplicableRegionSet set = regionManager.getApplicableRegions(BlockVector3.at(blockX, blockY, blockZ));
+            final Set<ProtectedRegion> regions = set.getRegions();
+            final List<ProtectedRegion> entered = this.registry.enteredRegions;
+            final List<ProtectedRegion> exited = this.registry.exitedRegions;
+            try {
+                for (int i = 0; i < this.joinedRegionCount; i++) {
+                    final ProtectedRegion region = getJoinedRegion(i);
+                    if (!regions.contains(region)) {
+                        exited.add(region);
+                    }
+                }
+                for (final ProtectedRegion region : regions) {
+                    if (indexOfJoinedRegion(region) == -1) {
+                        entered.add(region);
+                    }
+                }
+
+                if (entered.isEmpty() && exited.isEmpty() && sameWorld) {
+                    this.currentRegionSet = set; // no changes to flags if regions didn't change
+                } else {
+                    updateRegions(set, entered, exited, sameWorld);
+                }
+            } finally {
+                entered.clear();
+                exited.clear();
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Refreshes many subjects at once. Subjects in the same world, standing in the exact same
+     * regions, and with the same membership of those regions (owner, member or non-member)
+     * get the same flag values. They are grouped, so that the flags are queried once per group
+     * and the values handed out to all subjects of the group. When a flag is changed in a busy
+     * region, the cost of querying it no longer grows with the number of players inside.<br>
+     * <br>
+     * Not thread-safe, one instance is used on the main thread only.
+     */
+    private static final class GroupedRefresh {
+        private final Map<RefreshGroupKey, RefreshGroup> groups = new HashMap<>();
+        private final List<RefreshGroup> groupList = new ArrayList<>();
+        private final RefreshGroupKey lookupKey = new RefreshGroupKey();
+        private final List<ProtectedRegion> singleRegion = new ArrayList<>(1);
+
+        /**
+         * Refreshes a range of the subjects scheduled to be refreshed
+         *
+         * @param registry Registry
+         * @param subjects Subjects scheduled to be refreshed
+         * @param start Index of the first subject to refresh
+         * @param end Index after the last subject to refresh
+         */
+        public void refresh(RegionFlagRegistryWorldGuard registry, List<TrackedSubject> subjects, int start, int end) {
+            final RegisteredWorldGuardRegionFlag<?, ?>[] activeFlags = registry.activeFlags;
+            try {
+                // Group the subjects by regions and membership. Subjects whose regions are not
+                // a normal region result set are special (bypass), those are queried on their own.
+                for (int i = start; i < end; i++) {
+                    final TrackedSubject subject = subjects.get(i);
+                    if (!subject.prepareRefresh(activeFlags)) {
+                        continue;
+                    }
+                    if (!(subject.currentRegionSet instanceof RegionResultSet)) {
+                        subject.queryValues(activeFlags, false);
+                        continue;
+                    }
+
+                    final ProtectedRegion globalRegion = registry.getGlobalRegion(subject.world);
+                    final RefreshGroupKey key = this.lookupKey;
+                    key.set(subject.currentRegionSet, globalRegion, subject.associable, this.singleRegion);
+                    RefreshGroup group = this.groups.get(key);
+                    if (group == null) {
+                        group = new RefreshGroup(subject, globalRegion, activeFlags.length);
+                        this.groups.put(key.copy(), group);
+                        this.groupList.add(group);
+                    }
+                    group.add(subject);
+                }
+
+                // Query the flags once for every group. No listeners are fired while doing so.
+                final RegionFlagMetrics metrics = registry.getMetricsRecorder();
+                final boolean wasQuerying = registry.isQuerying;
+                registry.isQuerying = true;
+                try {
+                    for (final RefreshGroup group : this.groupList) {
+                        if (metrics != null) {
+                            metrics.recordBatchQuery();
+                            for (int slot = 0; slot < activeFlags.length; slot++) {
+                                if (group.flagsToQuery[slot]) {
+                                    metrics.recordFlagQuery(slot);
+                                }
+                            }
+                        }
+                        registry.batchQuery.query(group.regionSet, group.globalRegion, group.associable,
+                                activeFlags, registry.activeFlagsByWorldGuardFlag, group.flagsToQuery, group.values);
+                    }
+                } finally {
+                    registry.isQuerying = wasQuerying;
+                }
+
+                // Hand out the values, which fires the listeners
+                for (final RefreshGroup group : this.groupList) {
+                    for (final TrackedSubject subject : group.subjects) {
+                        subject.applyQueriedValues(activeFlags, group.values);
+                    }
+                }
+            } finally {
+                this.groups.clear();
+                this.groupList.clear();
+                this.singleRegion.clear();
+            }
+        }
+    }
+
+    /**
+     * Subjects that get the same flag values, and the values queried for them
+     */
+    private static final class RefreshGroup {
+        public final ApplicableRegionSet regionSet;
+        public final ProtectedRegion globalRegion;
+        public final RegionAssociable associable;
+        public final List<TrackedSubject> subjects = new ArrayList<>(4);
+        /** Flags queried, the flags that must be queried for any of the subjects */
+        public final boolean[] flagsToQuery;
+        public final Object[] values;
+
+        public RefreshGroup(TrackedSubject first, ProtectedRegion globalRegion, int numSlots) {
+            this.regionSet = first.currentRegionSet;
+            this.globalRegion = globalRegion;
+            this.associable = first.associable;
+            this.flagsToQuery = new boolean[numSlots];
+            this.values = new Object[numSlots];
+        }
+
+        public void add(TrackedSubject subject) {
+            this.subjects.add(subject);
+            final boolean[] subjectFlagsToQuery = subject.flagsToQuery;
+            for (int slot = 0; slot < this.flagsToQuery.length && slot < subjectFlagsToQuery.length; slot++) {
+                if (subjectFlagsToQuery[slot]) {
+                    this.flagsToQuery[slot] = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Identifies a group of subjects that get the same flag values. Made up of the global region,
+     * the regions of the region set in order, and for players the association with each of those
+     * regions and their parents. Regions are compared by identity, as regions of different
+     * worlds can have the same id.<br>
+     * <br>
+     * WorldGuard decides the association with a list of regions by whether the player owns or is
+     * a member of any of them. So when the association with every region is the same, the
+     * association with every list of them is too.
+     */
+    private static final class RefreshGroupKey {
+        private Object[] parts = new Object[16];
+        private int size = 0;
+        private int hash = 1;
+
+        public void set(ApplicableRegionSet set, ProtectedRegion globalRegion, RegionAssociable associable, List<ProtectedRegion> singleRegion) {
+            this.size = 0;
+            this.hash = 1;
+            add((associable == null) ? Boolean.FALSE : Boolean.TRUE);
+            add(globalRegion);
+            if (associable != null && globalRegion != null) {
+                add(getAssociation(associable, globalRegion, singleRegion));
+            }
+            for (final ProtectedRegion region : set) {
+                add(region);
+                if (associable != null) {
+                    for (ProtectedRegion r = region; r != null; r = r.getParent()) {
+                        add(getAssociation(associable, r, singleRegion));
+                    }
+                }
+            }
+        }
+
+        public RefreshGroupKey copy() {
+            final RefreshGroupKey copy = new RefreshGroupKey();
+            copy.parts = Arrays.copyOf(this.parts, this.size);
+            copy.size = this.size;
+            copy.hash = this.hash;
+            return copy;
+        }
+
+        private void add(Object part) {
+            if (this.size == this.parts.length) {
+                this.parts = Arrays.copyOf(this.parts, this.size * 2);
+            }
+            this.parts[this.size++] = part;
+            this.hash = 31 * this.hash + System.identityHashCode(part);
+        }
+
+        private static Association getAssociation(RegionAssociable associable, ProtectedRegion region, List<ProtectedRegion> singleRegion) {
+            singleRegion.clear();
+            singleRegion.add(region);
+            return associable.getAssociation(singleRegion);
+        }
+
+        @Override
+        public int hashCode() {
+            return this.hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof RefreshGroupKey)) {
+                return false;
+            }
+            final RefreshGroupKey other = (RefreshGroupKey) o;
+            if (this.hash != other.hash || this.size != other.size) {
+                return false;
+            }
+            for (int i = 0; i < this.size; i++) {
+                if (this.parts[i] != other.parts[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Queries the values of many flags at once for a player in a region set. Does the same
+     * as calling {@link ApplicableRegionSet#queryValue(RegionAssociable, Flag)} for every
+     * flag, but walks the regions (and their parents) only once. Only the flags actually
+     * set in a region are looked at, so the cost does not grow with the number of flags
+     * registered.<br>
+     * <br>
+     * This mirrors the logic of WorldGuard's FlagValueCalculator:
+     * <ul>
+     * <li>Regions are visited in order of descending priority. Once a value is found, regions
+     *     of lower priority are no longer considered for that flag.</li>
+     * <li>Parents of regions already visited are skipped</li>
+     * <li>Values are inherited from parents, taking the region group flag into account</li>
+     * <li>If no region sets a value, the global region and then the flag default is used</li>
+     * <li>If multiple regions of the same priority set a value, {@link Flag#chooseValue(Collection)}
+     *     picks one</li>
+     * </ul>
+     * Not thread-safe, one instance is used on the main thread only.
+     */
+    private static final class FlagBatchQuery implements BiConsumer<Flag<?>, Object> {
+        private final List<ProtectedRegion> ignoredParents = new ArrayList<>();
+        private final List<ProtectedRegion> chain = new ArrayList<>();
+        private Association[] chainAssociations = new Association[4];
+        private int[] foundPriority = new int[0];
+        private int[] foundInRegion = new int[0];
+        private List<Object>[] extraValues = createExtraValues(0);
+
+        // State while querying
+        private Map<Flag<?>, RegisteredWorldGuardRegionFlag<?, ?>> flagsByWorldGuardFlag;
+        private RegisteredWorldGuardRegionFlag<?, ?>[] activeFlags;
+        private boolean[] flagsToQuery;
+        private Object[] values;
+        private RegionAssociable subject;
+        private int regionIndex;
+        private int regionPriority;
+        private int chainDepth;
+
+        /**
+         * Queries the values of flags
+         *
+         * @param set Region set to query the flags of
+         * @param globalRegion Global region of the world, null if there is none
+         * @param subject Subject to query the flags for (player)
+         * @param activeFlags Flags by slot
+         * @param flagsByWorldGuardFlag Maps the WorldGuard flags of the active flags to the active flag
+         * @param flagsToQuery Whether to query the flag at a slot
+         * @param values Output array, the queried values are written to the slots queried
+         */
+        public void query(
+                final ApplicableRegionSet set,
+                final ProtectedRegion globalRegion,
+                final RegionAssociable subject,
+                final RegisteredWorldGuardRegionFlag<?, ?>[] activeFlags,
+                final Map<Flag<?>, RegisteredWorldGuardRegionFlag<?, ?>> flagsByWorldGuardFlag,
+                final boolean[] flagsToQuery,
+                final Object[] values
+        ) {
+            final int numSlots = activeFlags.length;
+
+            // Not a normal region result set (bypass, failed to load), let WorldGuard handle it
+            if (!(set instanceof RegionResultSet)) {
+                for (int slot = 0; slot < numSlots; slot++) {
+                    if (flagsToQuery[slot]) {
+                        values[slot] = set.queryValue(subject, activeFlags[slot].worldguardFlag);
+                    }
+                }
+                return;
+            }
+
+            if (this.foundPriority.length < numSlots) {
+                this.foundPriority = new int[numSlots];
+                this.foundInRegion = new int[numSlots];
+                this.extraValues = createExtraValues(numSlots);
+            }
+
+            this.flagsByWorldGuardFlag = flagsByWorldGuardFlag;
+            this.activeFlags = activeFlags;
+            this.flagsToQuery = flagsToQuery;
+            this.values = values;
+            this.subject = subject;
+            this.regionPriority = Integer.MAX_VALUE;
+            try {
+                int remaining = 0;
+                for (int slot = 0; slot < numSlots; slot++) {
+                    if (flagsToQuery[slot]) {
+                        values[slot] = null;
+                        foundPriority[slot] = Integer.MIN_VALUE;
+                        foundInRegion[slot] = -1;
+                        remaining++;
+                    }
+                }
+
+                this.regionIndex = 0;
+                for (final ProtectedRegion region : set) {
+                    if (remaining == 0) {
+                        break;
+                    }
+                    if (ProtectedRegion.GLOBAL_REGION.equals(region.getId())) {
+                        continue;
+                    }
+
+                    final int priority = region.getPriority();
+
+                    // Flags for which a value was found at a higher priority are done
+                    if (priority < this.regionPriority) {
+                        for (int slot = 0; slot < numSlots; slot++) {
+                            if (flagsToQuery[slot] && foundInRegion[slot] != -1 && foundInRegion[slot] != -2 && priority < foundPriority[slot]) {
+                                foundInRegion[slot] = -2; // Done
+                                remaining--;
+                            }
+                        }
+                        if (remaining == 0) {
+                            break;
+                        }
+                    }
+                    this.regionPriority = priority;
+
+                    // Skip parents of regions processed before
+                    // PASSTHROUGH is not checked, WorldGuard only uses it to decide membership
+                    if (containsRegion(ignoredParents, region)) {
+                        continue;
+                    }
+
+                    // Walk the region and its parents, looking at the flags that are actually set
+                    this.regionIndex++;
+                    chain.clear();
+                    for (ProtectedRegion r = region; r != null; r = r.getParent()) {
+                        chain.add(r);
+                    }
+                    if (chainAssociations.length < chain.size()) {
+                        chainAssociations = new Association[chain.size()];
+                    } else {
+                        Arrays.fill(chainAssociations, null);
+                    }
+                    for (int depth = 0; depth < chain.size(); depth++) {
+                        this.chainDepth = depth;
+                        chain.get(depth).getFlags().forEach(this);
+                    }
+
+                    for (ProtectedRegion parent = region.getParent(); parent != null; parent = parent.getParent()) {
+                        ignoredParents.add(parent);
+                    }
+                }
+
+                // Flags not set in any of the regions use the global region, or the default value
+                for (int slot = 0; slot < numSlots; slot++) {
+                    if (!flagsToQuery[slot]) {
+                        continue;
+                    }
+
+                    final List<Object> extra = extraValues[slot];
+                    if (!extra.isEmpty()) {
+                        extra.add(0, values[slot]);
+                        values[slot] = chooseValue(activeFlags[slot].worldguardFlag, extra);
+                        extra.clear();
+                    } else if (foundInRegion[slot] == -1) {
+                        final Flag<?> worldguardFlag = activeFlags[slot].worldguardFlag;
+                        Object value = null;
+                        if (globalRegion != null) {
+                            value = getEffectiveFlag(globalRegion, worldguardFlag, subject);
+                        }
+                        if (value == null) {
+                            value = worldguardFlag.getDefault();
+                        }
+                        values[slot] = value;
+                    }
+                }
+            } finally {
+                this.flagsByWorldGuardFlag = null;
+                this.activeFlags = null;
+                this.flagsToQuery = null;
+                this.values = null;
+                this.subject = null;
+                this.ignoredParents.clear();
+                this.chain.clear();
+            }
+        }
+
+        @Override
+        public void accept(Flag<?> worldguardFlag, Object value) {
+            final RegisteredWorldGuardRegionFlag<?, ?> flag = flagsByWorldGuardFlag.get(worldguardFlag);
+            if (flag == null || flag.worldguardFlag != worldguardFlag || value == null) {
+                return; // Not tracked, or a region group flag
+            }
+            final int slot = flag.getSlot();
+            if (slot < 0 || slot >= activeFlags.length || !flagsToQuery[slot] || activeFlags[slot] != flag) {
+                return; // Not queried
+            }
+            final int found = foundInRegion[slot];
+            if (found == regionIndex || found == -2) {
+                return; // Value was already found in a child region, or lower priority than value found
+            }
+
+            // Check the region group flag, if used by the flag
+            final RegionGroupFlag groupFlag = worldguardFlag.getRegionGroupFlag();
+            if (groupFlag != null) {
+                RegionGroup group = chain.get(chainDepth).getFlag(groupFlag);
+                if (group == null) {
+                    group = groupFlag.getDefault();
+                }
+                if (group == null) {
+                    return;
+                } else if (group != RegionGroup.ALL && !group.contains(getChainAssociation())) {
+                    return;
+                }
+            }
+
+            // Found a value!
+            if (found == -1) {
+                values[slot] = value;
+            } else {
+                extraValues[slot].add(value);
+            }
+            foundInRegion[slot] = regionIndex;
+            foundPriority[slot] = regionPriority;
+        }
+
+        private Association getChainAssociation() {
+            if (subject == null) {
+                return Association.NON_MEMBER;
+            }
+            Association association = chainAssociations[chainDepth];
+            if (association == null) {
+                association = subject.getAssociation(chain.subList(0, chainDepth + 1));
+                chainAssociations[chainDepth] = association;
+            }
+            return association;
+        }
+
+        @SuppressWarnings("unchecked")
+        private static <V> V chooseValue(Flag<V> flag, List<Object> values) {
+            return flag.chooseValue((Collection<V>) values);
+        }
+
+        /**
+         * Same as WorldGuard's FlagValueCalculator getEffectiveFlag
+         */
+        private static <V> V getEffectiveFlag(final ProtectedRegion region, final Flag<V> flag, final RegionAssociable subject) {
+            if (ProtectedRegion.GLOBAL_REGION.equals(region.getId())
+                    && flag instanceof StateFlag && ((StateFlag) flag).preventsAllowOnGlobal()
+            ) {
+                // Some flags can't be ALLOW on the global region
+                V value = region.getFlag(flag);
+                return (value != StateFlag.State.ALLOW) ? value : null;
+            }
+
+            for (ProtectedRegion current = region; current != null; current = current.getParent()) {
+                V value = current.getFlag(flag);
+                if (value == null) {
+                    continue;
+                }
+
+                RegionGroupFlag groupFlag = flag.getRegionGroupFlag();
+                if (groupFlag == null) {
+                    return value;
+                }
+
+                RegionGroup group = current.getFlag(groupFlag);
+                if (group == null) {
+                    group = groupFlag.getDefault();
+                }
+                if (group == null) {
+                    continue;
+                } else if (group == RegionGroup.ALL) {
+                    return value;
+                } else if (subject == null) {
+                    if (group.contains(Association.NON_MEMBER)) {
+                        return value;
+                    }
+                } else {
+                    List<ProtectedRegion> seen = new ArrayList<>();
+                    for (ProtectedRegion r = region; r != current; r = r.getParent()) {
+                        seen.add(r);
+                    }
+                    seen.add(current);
+                    if (group.contains(subject.getAssociation(seen))) {
+                        return value;
+                    }
+                }
+            }
+            return null;
+        }
+
+        private static boolean containsRegion(List<ProtectedRegion> regions, ProtectedRegion region) {
+            for (int i = 0, size = regions.size(); i < size; i++) {
+                if (regions.get(i) == region) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @SuppressWarnings("unchecked")
+        private static List<Object>[] createExtraValues(int numSlots) {
+            List<Object>[] result = new List[numSlots];
+            for (int i = 0; i < numSlots; i++) {
+                result[i] = new ArrayList<>(2);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Decides when tracked regions are polled for flag changes. Regions whose flags do not
+     * change are polled less often: the interval doubles every time, up to the maximum
+     * staleness. When a change is detected, the region is polled every tick again.
+     * Regions whose change tracker notifies changes are only verified once in a while.<br>
+     * <br>
+     * Every tick, the regions due are polled until the time budget runs out. The remaining
+     * regions are postponed to the next tick, unless that would exceed the maximum staleness.
+     * Uses a timing wheel: a list of regions for every tick, cycled through.
+     */
+    private static final class RegionPollScheduler {
+        private List<TrackedProtectedRegion>[] wheel = createWheel(NOTIFIED_REGION_VERIFY_INTERVAL + 1);
+
+        /**
+         * Schedules a region to be polled in the future
+         *
+         * @param region Region to schedule
+         * @param tick Current tick
+         * @param interval Number of ticks from now to poll the region
+         * @param maximumStaleness Maximum number of ticks from now the region must be polled
+         */
+        public void schedule(TrackedProtectedRegion region, int tick, int interval, int maximumStaleness) {
+            if (maximumStaleness >= wheel.length) {
+                growWheel(maximumStaleness + 1);
+            }
+            region.pollInterval = interval;
+            region.pollDeadlineTick = tick + maximumStaleness;
+            scheduleAt(region, tick + Math.min(interval, maximumStaleness));
+        }
+
+        private void scheduleAt(TrackedProtectedRegion region, int pollTick) {
+            region.nextPollTick = pollTick;
+            wheel[Math.floorMod(pollTick, wheel.length)].add(region);
+        }
+
+        public void run(RegionFlagRegistryWorldGuard registry, int tick, long timeBudgetNanos) {
+            final List<TrackedProtectedRegion> due = wheel[Math.floorMod(tick, wheel.length)];
+            if (due.isEmpty()) {
+                return;
+            }
+
+            final int maximumStaleness = registry.getMaximumUpdateStaleness();
+            final long startTime = System.nanoTime();
+            boolean outOfTime = false;
+            try {
+                for (int i = 0; i < due.size(); i++) {
+                    final TrackedProtectedRegion region = due.get(i);
+                    if (!region.isTracked() || region.nextPollTick != tick) {
+                        continue; // No longer tracked, or re-scheduled since
+                    }
+
+                    // Over budget, postpone polling this region until next tick if allowed
+                    if (outOfTime && region.pollDeadlineTick > tick) {
+                        scheduleAt(region, tick + 1);
+                        continue;
+                    }
+
+                    final TrackedProtectedRegion.UpdateResult result = registry.updateTrackedRegion(region);
+                    if (result == TrackedProtectedRegion.UpdateResult.CHANGED) {
+                        schedule(region, tick, 1, maximumStaleness);
+                    } else if (result == TrackedProtectedRegion.UpdateResult.KEEP) {
+                        if (region.flagChangeTracker.isNotifyingChanges()) {
+                            final int verifyInterval = Math.min(NOTIFIED_REGION_VERIFY_INTERVAL, maximumStaleness);
+                            schedule(region, tick, verifyInterval, verifyInterval);
+                        } else {
+                            schedule(region, tick, Math.min(region.pollInterval * 2, maximumStaleness), maximumStaleness);
+                        }
+                    }
+
+                    // Checking the time is not free, so only do it every few regions
+                    if ((i & 7) == 7 && (System.nanoTime() - startTime) > timeBudgetNanos) {
+                        outOfTime = true;
+                    }
+                }
+            } finally {
+                due.clear();
+            }
+        }
+
+        public void clear() {
+            for (List<TrackedProtectedRegion> regions : wheel) {
+                regions.clear();
+            }
+        }
+
+        private void growWheel(int size) {
+            List<TrackedProtectedRegion>[] oldWheel = this.wheel;
+            this.wheel = createWheel(size);
+            for (List<TrackedProtectedRegion> regions : oldWheel) {
+                for (TrackedProtectedRegion region : regions) {
+                    this.wheel[Math.floorMod(region.nextPollTick, this.wheel.length)].add(region);
+                }
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private static List<TrackedProtectedRegion>[] createWheel(int size) {
+            List<TrackedProtectedRegion>[] wheel = new List[size];
+            for (int i = 0; i < size; i++) {
+                wheel[i] = new ArrayList<>();
+            }
+            return wheel;
+        }
+    }
+
+    /**
+     * Caches flag values at locations, for no particular player, by 16x16x16 chunk section.
+     * Only sections that are inside or outside every region entirely are cached, as then
+     * the values are the same everywhere inside the section. Such a section is only cached
+     * when all the regions involved are simple cuboids.<br>
+     * <br>
+     * The regions a cached section depends on are tracked, so that when their flags change
+     * the section is invalidated. Regions created or removed later are not detected that way,
+     * so sections also expire after a short while. Expired sections are removed periodically,
+     * so the regions they depend on are no longer tracked when nobody is inside them, even in
+     * chunks that never unload. Sections are also evicted when the chunk unloads.
+     * Only used on the main thread.
+     */
+    private static final class SectionValueCache {
+        private static final int EXPIRE_TICKS = 100;
+        private final RegionFlagRegistryWorldGuard registry;
+        private final Map<org.bukkit.World, Map<Long, CachedChunk>> chunksByWorld = new IdentityHashMap<>();
+        /** Used by expireSections() to collect the sections to invalidate */
+        private final List<CachedSection> expiredSections = new ArrayList<>();
+
+        public SectionValueCache(RegionFlagRegistryWorldGuard registry) {
+            this.registry = registry;
+        }
+
+        public Object getRawValue(RegisteredWorldGuardRegionFlag<?, ?> flag, org.bukkit.Location location) {
+            final org.bukkit.World bukkitWorld = location.getWorld();
+            final World world = BukkitAdapter.adapt(bukkitWorld);
+            final RegionManager regionManager = this.registry.getRegionManager(world);
+            if (regionManager == null) {
+                return null; // Regions are disabled in this world
+            }
+
+            final int x = location.getBlockX();
+            final int y = location.getBlockY();
+            final int z = location.getBlockZ();
+            if (this.registry.libraryPlugin == null) {
+                return regionManager.getApplicableRegions(BlockVector3.at(x, y, z)).queryValue(null, flag.worldguardFlag);
+            }
+
+            final CachedSection section = getSection(bukkitWorld, world, regionManager, x >> 4, y >> 4, z >> 4);
+            final RegionFlagMetrics metrics = this.registry.getMetricsRecorder();
+            if (metrics != null && !section.isCached(flag)) {
+                metrics.recordFlagQuery(flag.getSlot());
+            }
+            if (section.regionSet == null) {
+                // Not the same everywhere inside this section, query the exact position
+                return regionManager.getApplicableRegions(BlockVector3.at(x, y, z)).queryValue(null, flag.worldguardFlag);
+            } else {
+                return section.getRawValue(flag);
+            }
+        }
+
+        private CachedSection getSection(org.bukkit.World bukkitWorld, World world, RegionManager regionManager, int cx, int cy, int cz) {
+            final Map<Long, CachedChunk> chunks = this.chunksByWorld.computeIfAbsent(bukkitWorld, w -> new HashMap<>());
+            final long chunkKey = chunkKey(cx, cz);
+            CachedChunk chunk = chunks.get(chunkKey);
+            if (chunk == null) {
+                chunk = new CachedChunk(chunks, chunkKey);
+                chunks.put(chunkKey, chunk);
+            }
+
+            CachedSection section = chunk.sections.get(cy);
+            if (section != null && (this.registry.currentTick - section.createdTick) < EXPIRE_TICKS) {
+                return section;
+            } else if (section != null) {
+                section.invalidate();
+            }
+
+            section = createSection(chunk, world, regionManager, cx, cy, cz);
+            chunk.sections.put(cy, section);
+            return section;
+        }
+
+        private CachedSection createSection(CachedChunk chunk, World world, RegionManager regionManager, int cx, int cy, int cz) {
+            final BlockVector3 min = BlockVector3.at(cx << 4, cy << 4, cz << 4);
+            final BlockVector3 max = BlockVector3.at((cx << 4) + 15, (cy << 4) + 15, (cz << 4) + 15);
+
+            // Check every region overlapping the section covers it entirely
+            final ApplicableRegionSet overlapping = regionManager.getApplicableRegions(
+                    new ProtectedCuboidRegion("__regionflagtracker_section__", min, max));
+            for (ProtectedRegion region : overlapping) {
+                if (region.getType() != RegionType.CUBOID || !region.contains(min) || !region.contains(max)) {
+                    return new CachedSection(chunk, cy, null, this.registry.currentTick);
+                }
+            }
+
+            // Values are the same everywhere. Track the regions (and their parents) so the
+            // section is invalidated when their flags change. Includes the global region.
+            final ApplicableRegionSet regionSet = regionManager.getApplicableRegions(min);
+            final CachedSection section = new CachedSection(chunk, cy, regionSet, this.registry.currentTick);
+            for (ProtectedRegion region : regionSet) {
+                for (ProtectedRegion r = region; r != null; r = r.getParent()) {
+                    section.dependOn(this.registry.trackRegion(r));
+                }
+            }
+            final ProtectedRegion globalRegion = this.registry.getGlobalRegion(world);
+            if (globalRegion != null) {
+                section.dependOn(this.registry.trackRegion(globalRegion));
+            }
+            return section;
+        }
+
+        /**
+         * Invalidates all sections that expired, releasing the regions they depend on
+         */
+        public void expireSections() {
+            final List<CachedSection> expiredSections = this.expiredSections;
+            final int expireBeforeTick = this.registry.currentTick - EXPIRE_TICKS;
+            for (Map<Long, CachedChunk> chunks : this.chunksByWorld.values()) {
+                for (CachedChunk chunk : chunks.values()) {
+                    for (CachedSection section : chunk.sections.values()) {
+                        if (section.createdTick <= expireBeforeTick) {
+                            expiredSections.add(section);
+                        }
+                    }
+                }
+            }
+            try {
+                for (CachedSection section : expiredSections) {
+                    section.invalidate();
+                }
+            } finally {
+                expiredSections.clear();
+            }
+        }
+
+        public void evictChunk(org.bukkit.World world, int cx, int cz) {
+            final Map<Long, CachedChunk> chunks = this.chunksByWorld.get(world);
+            if (chunks != null) {
+                final CachedChunk chunk = chunks.get(chunkKey(cx, cz));
+                if (chunk != null) {
+                    chunk.invalidateAll();
+                }
+            }
+        }
+
+        public void evictWorld(org.bukkit.World world) {
+            final Map<Long, CachedChunk> chunks = this.chunksByWorld.remove(world);
+            if (chunks != null) {
+                for (CachedChunk chunk : new ArrayList<>(chunks.values())) {
+                    chunk.invalidateAll();
+                }
+            }
+        }
+
+        public void clear() {
+            this.chunksByWorld.clear();
+        }
+
+        private static long chunkKey(int cx, int cz) {
+            return ((long) cx << 32) | (cz & 0xFFFFFFFFL);
+        }
+    }
+
+    private static final class CachedChunk {
+        private final Map<Long, CachedChunk> owner;
+        private final long key;
+        /** Sections by section y-coordinate */
+        public final Map<Integer, CachedSection> sections = new HashMap<>();
+
+        public CachedChunk(Map<Long, CachedChunk> owner, long key) {
+            this.owner = owner;
+            this.key = key;
+        }
+
+        public void invalidateAll() {
+            for (CachedSection section : new ArrayList<>(this.sections.values())) {
+                section.invalidate();
+            }
+        }
+
+        public void remove(CachedSection section) {
+            if (this.sections.get(section.sectionY) == section) {
+                this.sections.remove(section.sectionY);
+                if (this.sections.isEmpty()) {
+                    this.owner.remove(this.key, this);
+                }
+            }
+        }
+    }
+
+    private static final class CachedSection {
+        private final CachedChunk chunk;
+        public final int sectionY;
+        /** Regions at every position in this section. Null if not the same everywhere. */
+        public final ApplicableRegionSet regionSet;
+        public final int createdTick;
+        /** Tracked regions whose flags affect the values of this section */
+        private final List<TrackedProtectedRegion> dependencies = new ArrayList<>(2);
+        /** For every slot, the flag whose value is stored in values. Null if never queried. */
+        private RegisteredWorldGuardRegionFlag<?, ?>[] queriedFlags = NO_FLAGS;
+        private Object[] values = new Object[0];
+
+        public CachedSection(CachedChunk chunk, int sectionY, ApplicableRegionSet regionSet, int createdTick) {
+            this.chunk = chunk;
+            this.sectionY = sectionY;
+            this.regionSet = regionSet;
+            this.createdTick = createdTick;
+        }
+
+        /**
+         * Gets whether the value of a flag is cached. Not cached values must be queried.
+         *
+         * @param flag Flag
+         * @return True if cached
+         */
+        public boolean isCached(RegisteredWorldGuardRegionFlag<?, ?> flag) {
+            final int slot = flag.getSlot();
+            return this.regionSet != null && slot < this.queriedFlags.length && this.queriedFlags[slot] == flag;
+        }
+
+        public Object getRawValue(RegisteredWorldGuardRegionFlag<?, ?> flag) {
+            final int slot = flag.getSlot();
+            if (slot < this.queriedFlags.length && this.queriedFlags[slot] == flag) {
+                return this.values[slot];
+            }
+
+            final Object value = this.regionSet.queryValue(null, flag.worldguardFlag);
+            if (slot >= this.queriedFlags.length) {
+                this.queriedFlags = Arrays.copyOf(this.queriedFlags, slot + 1);
+                this.values = Arrays.copyOf(this.values, slot + 1);
+            }
+            this.queriedFlags[slot] = flag;
+            this.values[slot] = value;
+            return value;
+        }
+
+        public void dependOn(TrackedProtectedRegion trackedRegion) {
+            if (!trackedRegion.cachedSections.contains(this)) {
+                trackedRegion.cachedSections.add(this);
+                this.dependencies.add(trackedRegion);
+            }
+        }
+
+        public void invalidate() {
+            this.chunk.remove(this);
+            for (TrackedProtectedRegion trackedRegion : this.dependencies) {
+                trackedRegion.cachedSections.remove(this);
+            }
+            this.dependencies.clear();
+        }
+    }
+
+    private static final class TrackedProtectedRegion {
+        private static boolean IS_OPTIMIZED_FLAG_TRACKER_WORKING = true;
+        public final ProtectedRegion region;
+        /**
+         * Players and entities inside this region. For every subject also stores the index of
+         * this region in the joined regions of that subject.
+         */
+        private TrackedSubject[] subjects = NO_SUBJECTS;
+        private int[] subjectJoinedRegionIndices = NO_INDICES;
+        private int subjectCount = 0;
+        /** Cached chunk sections whose values depend on this region */
+        private final List<CachedSection> cachedSections = new ArrayList<>(0);
+        private WGRegionFlagsChangeTracker flagChangeTracker;
+        /** Index in the tracked region list, -1 if no longer tracked */
+        private int listIndex = -1;
+        /** Tick at which this region was last no longer tracked */
+        private int releasedTick;
+        /** Used by the RegionPollScheduler */
+        private int nextPollTick, pollDeadlineTick, pollInterval;
+
+        public TrackedProtectedRegion(RegionFlagRegistryWorldGuard registry, ProtectedRegion region) {
+            this.region = region;
+            this.flagChangeTracker = initFlagChangeTracker(registry.libraryPlugin, region,
+                    () -> registry.changedRegions.add(this), registry::isTrackedFlag);
+        }
+
+        private static WGRegionFlagsChangeTracker initFlagChangeTracker(Plugin libraryPlugin, ProtectedRegion region, Runnable changeListener, Predicate<Flag<?>> trackedFlagFilter) {
+            if (IS_OPTIMIZED_FLAG_TRACKER_WORKING) {
+                try {
+                    return new WGRegionFlagsChangeTrackerFieldHack(region, changeListener, trackedFlagFilter);
+                } catch (WGRegionFlagsChangeTrackerFieldHack.OptimizationNotSupportedException ex) {
+                    IS_OPTIMIZED_FLAG_TRACKER_WORKING = false;
+                    libraryPlugin.getLogger().log(Level.WARNING, "[RegionFlagTracker] Could not optimize detection of region flag changes", ex);
+                }
+            }
+            return new WGRegionFlagsChangeTrackerFallback(region, trackedFlagFilter);
+        }
+
+        public boolean isTracked() {
+            return listIndex != -1;
+        }
+
+        /**
+         * Forgets about the flags that changed since this region was last checked
+         */
+        public void discardChanges() {
+            flagChangeTracker.update(region, changedFlag -> {});
+        }
+
+        /**
+         * Gets whether no players are inside this region, and no cached chunk sections use it
+         *
+         * @return True if unused
+         */
+        public boolean isUnused() {
+            return subjectCount == 0 && cachedSections.isEmpty();
+        }
+
+        public void invalidateCachedSections() {
+            while (!cachedSections.isEmpty()) {
+                cachedSections.get(cachedSections.size() - 1).invalidate();
+            }
+        }
+
+        /**
+         * Adds a subject to this region
+         *
+         * @param subject Subject to add
+         * @param joinedRegionIndex Index of this region in the joined regions of the subject
+         * @return Index of the subject in this region
+         */
+        private int addSubject(TrackedSubject subject, int joinedRegionIndex) {
+            final int index = this.subjectCount++;
+            if (index == this.subjects.length) {
+                final int newCapacity = Math.max(4, index * 2);
+                this.subjects = Arrays.copyOf(this.subjects, newCapacity);
+                this.subjectJoinedRegionIndices = Arrays.copyOf(this.subjectJoinedRegionIndices, newCapacity);
+            }
+            this.subjects[index] = subject;
+            this.subjectJoinedRegionIndices[index] = joinedRegionIndex;
+            return index;
+        }
+
+        private void removeSubjectAt(int index) {
+            // Swap-remove, move the last subject into the removed subject's place
+            // The subject must be told where in this region it can now be found
+            final int lastIndex = --this.subjectCount;
+            if (index != lastIndex) {
+                final TrackedSubject last = this.subjects[lastIndex];
+                final int lastJoinedRegionIndex = this.subjectJoinedRegionIndices[lastIndex];
+                this.subjects[index] = last;
+                this.subjectJoinedRegionIndices[index] = lastJoinedRegionIndex;
+                last.joinedRegionSubjectIndices[lastJoinedRegionIndex] = index;
+            }
+            this.subjects[lastIndex] = null;
+        }
+
+        public UpdateResult update(Consumer<Flag<?>> changedFlags) {
+            if (isUnused()) {
+                return UpdateResult.CLEANUP;
+            } else if (flagChangeTracker.update(region, changedFlags)) {
+                return UpdateResult.CHANGED;
+            } else {
+                return UpdateResult.KEEP;
+            }
+        }
+
+        private enum UpdateResult {
+            /** Flags did not change */
+            KEEP,
+            /** Flags changed, subjects must refresh the flags that changed */
+            CHANGED,
+            /** Nobody is inside this region anymore, stop tracking it */
+            CLEANUP
+        }
+    }
 }
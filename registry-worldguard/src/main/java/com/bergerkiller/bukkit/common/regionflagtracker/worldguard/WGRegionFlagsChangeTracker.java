@@ -1,8 +1,37 @@
 package com.bergerkiller.bukkit.common.regionflagtracker.worldguard;
 
+import com.sk89q.worldguard.protection.flags.Flag;
 import com.sk89q.worldguard.protection.regions.ProtectedRegion;
 
+import java.util.function.Consumer;
+
 public interface WGRegionFlagsChangeTracker {
+    /**
+     * Stops tracking changes of the flags of a region, and restores anything that was
+     * changed about the region to do so. The tracker must not be used afterwards.
+     *
+     * @param region The region whose flags were tracked
+     */
     void cleanup(ProtectedRegion region);
-    boolean update(ProtectedRegion region);
+
+    /**
+     * Checks whether any of the tracked flags of a region changed since the last time
+     * this method was called. Every flag that changed is passed to the consumer. If it
+     * is not known which flags changed, <i>null</i> is passed to the consumer instead,
+     * and all flags should be assumed changed.
+     *
+     * @param region The region whose flags are tracked
+     * @param changedFlags Receives the flags that changed
+     * @return True if any tracked flags changed
+     */
+    boolean update(ProtectedRegion region, Consumer<Flag<?>> changedFlags);
+
+    /**
+     * Gets whether this tracker notifies a listener when the flags of the region change.
+     * If true, {@link #update(ProtectedRegion, Consumer)} only has to be called after being
+     * notified. If false, it has to be polled every tick.
+     *
+     * @return True if changes are notified
+     */
+    boolean isNotifyingChanges();
 }
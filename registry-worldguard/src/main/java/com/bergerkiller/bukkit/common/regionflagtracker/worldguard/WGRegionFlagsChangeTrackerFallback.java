@@ -3,33 +3,128 @@ package com.bergerkiller.bukkit.common.regionflagtracker.worldguard;
 import com.sk89q.worldguard.protection.regions.ProtectedRegion;
 import com.sk89q.worldguard.protection.flags.Flag;
 
-import java.util.Collections;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.Map;
+import java.util.Objects;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 
 /**
- * Fallback implementation that just clones the flags map and checks for equality.
- * It's a lot slower to call equals() every tick...
+ * Fallback implementation used when the flags field can't be hooked. The flags of the
+ * region have to be polled periodically to detect changes.<br>
+ * <br>
+ * The values of the tracked flags are remembered by reference. Every poll, the values in the
+ * region are compared against these by identity, which does not allocate anything. WorldGuard
+ * stores a new value every time a flag is set, so a flag that was set again always fails
+ * this check. Only then are the values compared using equals() to find out which flags
+ * actually changed.
  */
 public class WGRegionFlagsChangeTrackerFallback implements WGRegionFlagsChangeTracker {
-    private Map<Flag<?>, ?> lastFlags;
+    private static final Flag<?>[] NO_FLAGS = new Flag<?>[0];
+    private static final Object[] NO_VALUES = new Object[0];
+    private final Predicate<Flag<?>> trackedFlagFilter;
+    private final BiConsumer<Flag<?>, Object> identityCheckFunction = this::checkIdentity;
+    private int checkedCount;
+    private boolean checkFailed;
+    /** Tracked flags set in the region the last time it changed, and their values */
+    private Flag<?>[] lastFlags = NO_FLAGS;
+    private Object[] lastValues = NO_VALUES;
 
-    public WGRegionFlagsChangeTrackerFallback(ProtectedRegion region) {
-        this.lastFlags = new HashMap<>(region.getFlags());
+    public WGRegionFlagsChangeTrackerFallback(ProtectedRegion region, Predicate<Flag<?>> trackedFlagFilter) {
+        this.trackedFlagFilter = trackedFlagFilter;
+        storeFlags(region.getFlags());
     }
 
     @Override
     public void cleanup(ProtectedRegion region) {
-        lastFlags = Collections.emptyMap();
+        lastFlags = NO_FLAGS;
+        lastValues = NO_VALUES;
     }
 
     @Override
-    public boolean update(ProtectedRegion region) {
-        if (region.getFlags().equals(lastFlags)) {
+    public boolean update(ProtectedRegion region, Consumer<Flag<?>> changedFlags) {
+        final Map<Flag<?>, Object> flags = region.getFlags();
+        this.checkedCount = 0;
+        this.checkFailed = false;
+        flags.forEach(this.identityCheckFunction);
+        if (!this.checkFailed && this.checkedCount == this.lastFlags.length) {
             return false;
-        } else {
-            lastFlags = new HashMap<>(region.getFlags());
-            return true;
         }
+
+        // Find out what flags changed
+        final Flag<?>[] prevFlags = this.lastFlags;
+        final Object[] prevValues = this.lastValues;
+        storeFlags(flags);
+        boolean changed = false;
+        for (int i = 0; i < this.lastFlags.length; i++) {
+            int prevIndex = indexOf(prevFlags, this.lastFlags[i]);
+            if (prevIndex == -1 || !Objects.equals(prevValues[prevIndex], this.lastValues[i])) {
+                changedFlags.accept(this.lastFlags[i]);
+                changed = true;
+            }
+        }
+        for (Flag<?> prevFlag : prevFlags) {
+            if (indexOf(this.lastFlags, prevFlag) == -1) {
+                changedFlags.accept(prevFlag);
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    @Override
+    public boolean isNotifyingChanges() {
+        return false;
+    }
+
+    private void checkIdentity(Flag<?> flag, Object value) {
+        if (!this.checkFailed && trackedFlagFilter.test(flag)) {
+            int index = indexOf(this.lastFlags, flag);
+            if (index == -1 || this.lastValues[index] != value) {
+                this.checkFailed = true;
+            }
+            this.checkedCount++;
+        }
+    }
+
+    private void storeFlags(Map<Flag<?>, Object> flags) {
+        int count = 0;
+        for (Flag<?> flag : flags.keySet()) {
+            if (trackedFlagFilter.test(flag)) {
+                count++;
+            }
+        }
+
+        Flag<?>[] newFlags = NO_FLAGS;
+        Object[] newValues = NO_VALUES;
+        if (count > 0) {
+            newFlags = new Flag<?>[count];
+            newValues = new Object[count];
+            count = 0;
+            for (Map.Entry<Flag<?>, Object> entry : flags.entrySet()) {
+                if (count < newFlags.length && trackedFlagFilter.test(entry.getKey())) {
+                    newFlags[count] = entry.getKey();
+                    newValues[count] = entry.getValue();
+                    count++;
+                }
+            }
+            if (count < newFlags.length) {
+                // Flags were removed concurrently
+                newFlags = Arrays.copyOf(newFlags, count);
+                newValues = Arrays.copyOf(newValues, count);
+            }
+        }
+        this.lastFlags = newFlags;
+        this.lastValues = newValues;
+    }
+
+    private static int indexOf(Flag<?>[] flags, Flag<?> flag) {
+        for (int i = 0; i < flags.length; i++) {
+            if (flags[i] == flag) {
+                return i;
+            }
+        }
+        return -1;
     }
 }
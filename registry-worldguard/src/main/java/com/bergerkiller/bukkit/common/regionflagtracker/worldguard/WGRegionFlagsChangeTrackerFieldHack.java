@@ -1,32 +1,40 @@
 package com.bergerkiller.bukkit.common.regionflagtracker.worldguard;
 
+import com.sk89q.worldguard.protection.flags.Flag;
 import com.sk89q.worldguard.protection.regions.ProtectedRegion;
 
 import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
 import java.util.AbstractMap;
-import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 
 /**
  * Modifies the private "flags" field using reflection, setting it to a value that includes
- * modification tracking.
+ * modification tracking. The keys of tracked flags that are modified are remembered. The
+ * change listener is notified the first time a tracked flag is modified after the last
+ * {@link #update(ProtectedRegion, Consumer)}. This can happen on any thread.
  */
 public class WGRegionFlagsChangeTrackerFieldHack implements WGRegionFlagsChangeTracker {
     private static final Field FLAGS_FIELD = getFlagsFieldVerify();
+    private final Runnable changeListener;
+    private final Predicate<Flag<?>> trackedFlagFilter;
     private ChangeTrackedMap expectedFlags;
-    private Map<?, ?> lastFlags;
 
-    public WGRegionFlagsChangeTrackerFieldHack(ProtectedRegion region) throws OptimizationNotSupportedException {
+    public WGRegionFlagsChangeTrackerFieldHack(ProtectedRegion region, Runnable changeListener, Predicate<Flag<?>> trackedFlagFilter) throws OptimizationNotSupportedException {
         if (FLAGS_FIELD == null) {
             throw new OptimizationNotSupportedException("ProtectedRegion.flags field is not available");
         }
 
-        expectedFlags = hook(region);
-        lastFlags = new HashMap<>(expectedFlags);
+        this.changeListener = changeListener;
+        this.trackedFlagFilter = trackedFlagFilter;
+        expectedFlags = hook(region, changeListener, trackedFlagFilter);
     }
 
     @Override
@@ -37,6 +45,8 @@ public class WGRegionFlagsChangeTrackerFieldHack implements WGRegionFlagsChangeT
             }
             Object currFieldValue = FLAGS_FIELD.get(region);
             if (currFieldValue instanceof ChangeTrackedMap) {
+                ((ChangeTrackedMap) currFieldValue).changeListener = null;
+                ((ChangeTrackedMap) currFieldValue).trackedFlagFilter = null;
                 FLAGS_FIELD.set(region, ((ChangeTrackedMap) currFieldValue).base);
             }
         } catch (Throwable t) {
@@ -45,24 +55,34 @@ public class WGRegionFlagsChangeTrackerFieldHack implements WGRegionFlagsChangeT
     }
 
     @Override
-    public boolean update(ProtectedRegion region) {
-        // See if the field, or the tracked flags field, changed at all
+    public boolean update(ProtectedRegion region, Consumer<Flag<?>> changedFlags) {
+        // See if the field was replaced. We don't know what changed, then.
         if ((Object) region.getFlags() != expectedFlags) {
             try {
-                expectedFlags = hook(region);
+                expectedFlags = hook(region, changeListener, trackedFlagFilter);
             } catch (Throwable t) {
                 throw new IllegalStateException("Failed to update ProtectedRegion.flags field after modification", t);
             }
+            changedFlags.accept(null);
+            return true;
         } else if (!expectedFlags.changed.getAndSet(false)) {
             return false;
         }
 
-        // If changed, compare the entire flags map with the slow equals()
-        if (region.getFlags().equals(lastFlags)) {
-            return false;
+        // Hand over all the flags that were modified. Flags can be modified concurrently
+        // while doing this, which will notify the change listener again.
+        boolean changed = false;
+        for (Iterator<Flag<?>> iter = expectedFlags.changedFlags.iterator(); iter.hasNext();) {
+            Flag<?> flag = iter.next();
+            iter.remove();
+            changedFlags.accept(flag);
+            changed = true;
         }
+        return changed;
+    }
 
-        lastFlags = new HashMap<>(region.getFlags());
+    @Override
+    public boolean isNotifyingChanges() {
         return true;
     }
 
@@ -73,11 +93,29 @@ public class WGRegionFlagsChangeTrackerFieldHack implements WGRegionFlagsChangeT
     private static class ChangeTrackedMap extends AbstractMap<Object, Object> implements ConcurrentMap<Object, Object> {
         public final ConcurrentMap<Object, Object> base;
         public final AtomicBoolean changed = new AtomicBoolean();
+        public final Set<Flag<?>> changedFlags = ConcurrentHashMap.newKeySet();
+        public volatile Runnable changeListener;
+        public volatile Predicate<Flag<?>> trackedFlagFilter;
 
         public ChangeTrackedMap(ConcurrentMap<Object, Object> base) {
             this.base = base;
         }
 
+        private void markChanged(Object key) {
+            Predicate<Flag<?>> filter = trackedFlagFilter;
+            if (!(key instanceof Flag) || filter == null || !filter.test((Flag<?>) key)) {
+                return; // Not a flag we care about
+            }
+
+            changedFlags.add((Flag<?>) key);
+            if (changed.compareAndSet(false, true)) {
+                Runnable listener = changeListener;
+                if (listener != null) {
+                    listener.run();
+                }
+            }
+        }
+
         @Override
         public int size() {
             return base.size();
@@ -111,21 +149,23 @@ public class WGRegionFlagsChangeTrackerFieldHack implements WGRegionFlagsChangeT
         @Override
         public Object put(Object key, Object value) {
             Object oldValue = base.put(key, value);
-            changed.set(true);
+            markChanged(key);
             return oldValue;
         }
 
         @Override
         public void putAll(Map<?, ?> m) {
             base.putAll(m);
-            changed.set(true);
+            for (Object key : m.keySet()) {
+                markChanged(key);
+            }
         }
 
         @Override
         public Object remove(Object key) {
             Object removed = base.remove(key);
             if (removed != null) {
-                changed.set(true);
+                markChanged(key);
             }
             return removed;
         }
@@ -133,14 +173,16 @@ public class WGRegionFlagsChangeTrackerFieldHack implements WGRegionFlagsChangeT
         @Override
         public Object putIfAbsent(Object key, Object value) {
             Object result = base.putIfAbsent(key, value);
-            changed.set(true);
+            if (result == null) {
+                markChanged(key);
+            }
             return result;
         }
 
         @Override
         public boolean remove(Object key, Object value) {
             if (base.remove(key, value)) {
-                changed.set(true);
+                markChanged(key);
                 return true;
             } else {
                 return false;
@@ -151,7 +193,7 @@ public class WGRegionFlagsChangeTrackerFieldHack implements WGRegionFlagsChangeT
         public boolean replace(Object key, Object oldValue, Object newValue) {
             boolean result = base.replace(key, oldValue, newValue);
             if (result) {
-                changed.set(true);
+                markChanged(key);
             }
             return result;
         }
@@ -159,14 +201,18 @@ public class WGRegionFlagsChangeTrackerFieldHack implements WGRegionFlagsChangeT
         @Override
         public Object replace(Object key, Object value) {
             Object result = base.replace(key, value);
-            changed.set(true);
+            if (result != null) {
+                markChanged(key);
+            }
             return result;
         }
 
         @Override
         public void clear() {
+            for (Object key : base.keySet()) {
+                markChanged(key);
+            }
             base.clear();
-            changed.set(true);
         }
 
         @Override
@@ -190,14 +236,22 @@ public class WGRegionFlagsChangeTrackerFieldHack implements WGRegionFlagsChangeT
         }
     }
 
-    private static ChangeTrackedMap hook(ProtectedRegion region) throws OptimizationNotSupportedException {
+    private static ChangeTrackedMap hook(ProtectedRegion region, Runnable changeListener, Predicate<Flag<?>> trackedFlagFilter) throws OptimizationNotSupportedException {
         try {
             ConcurrentMap<Object, Object> base = (ConcurrentMap<Object, Object>) FLAGS_FIELD.get(region);
             if (base instanceof ChangeTrackedMap) {
-                return (ChangeTrackedMap) base;
+                // Hooked before by a tracker that is no longer used. Start clean.
+                ChangeTrackedMap tracked = (ChangeTrackedMap) base;
+                tracked.changeListener = changeListener;
+                tracked.trackedFlagFilter = trackedFlagFilter;
+                tracked.changed.set(false);
+                tracked.changedFlags.clear();
+                return tracked;
             }
 
             ChangeTrackedMap tracked = new ChangeTrackedMap(base);
+            tracked.changeListener = changeListener;
+            tracked.trackedFlagFilter = trackedFlagFilter;
             FLAGS_FIELD.set(region, tracked);
 
             // Verify that property getter still returns the field as-is
@@ -0,0 +1,270 @@
+package com.bergerkiller.bukkit.common.regionflagtracker;
+
+import com.sk89q.worldedit.math.BlockVector3;
+import com.sk89q.worldguard.WorldGuard;
+import com.sk89q.worldguard.protection.ApplicableRegionSet;
+import com.sk89q.worldguard.protection.association.RegionAssociable;
+import com.sk89q.worldguard.protection.flags.Flag;
+import com.sk89q.worldguard.protection.flags.RegionGroup;
+import com.sk89q.worldguard.protection.flags.StateFlag;
+import com.sk89q.worldguard.protection.regions.GlobalProtectedRegion;
+import com.sk89q.worldguard.protection.regions.ProtectedCuboidRegion;
+import com.sk89q.worldguard.protection.regions.ProtectedRegion;
+import junit.framework.TestCase;
+import org.bukkit.entity.Entity;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Checks that the values the registry queries for many flags at once are the same as
+ * WorldGuard's own {@link ApplicableRegionSet#queryValue(RegionAssociable, Flag)}. Players
+ * and an entity walk through regions set up to hit a particular part of the lookup, and the
+ * tracked values are compared after every step.
+ */
+public class FlagBatchQueryTest extends TestCase {
+    private static final RegionFlag.OfInteger LEVEL = RegionFlag.OfInteger.create("batch-query-level");
+    private static final RegionFlag<String> NAME = RegionFlag.ofString("batch-query-name");
+    private static final RegionFlag.OfState ACCESS = RegionFlag.OfState.create("batch-query-access");
+    /** Player that is a member of the regions that have members */
+    private static final int MEMBER = 0;
+    /** Player that is not a member of any region */
+    private static final int NON_MEMBER = 1;
+
+    private SimulationEnvironment env;
+    private RegionFlagRegistryBaseImpl registry;
+    private Flag<Integer> levelFlag;
+    private Flag<String> nameFlag;
+    private Flag<StateFlag.State> accessFlag;
+
+    @Override
+    @SuppressWarnings("unchecked")
+    protected void setUp() throws Exception {
+        env = SimulationEnvironment.init();
+        env.clearRegions();
+        registry = (RegionFlagRegistryBaseImpl) RegionFlagRegistry.instance();
+        assertTrue("WorldGuard registry is not used", registry instanceof RegionFlagRegistryWorldGuard);
+
+        // Like in onLoad(). Disabling the registry un-registers them again after every test.
+        registry.registerAll(SimulationEnvironment.createPlugin("BatchQuery", false), LEVEL, NAME, ACCESS);
+        levelFlag = (Flag<Integer>) WorldGuard.getInstance().getFlagRegistry().get(LEVEL.name());
+        nameFlag = (Flag<String>) WorldGuard.getInstance().getFlagRegistry().get(NAME.name());
+        accessFlag = (Flag<StateFlag.State>) WorldGuard.getInstance().getFlagRegistry().get(ACCESS.name());
+        registry.enable(env.libraryPlugin);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        registry.disable();
+        env.cancelTasks();
+        env.clearRegions();
+    }
+
+    public void testOverlappingPriorities() {
+        GlobalProtectedRegion global = new GlobalProtectedRegion(ProtectedRegion.GLOBAL_REGION);
+        global.setFlag(levelFlag, 0);
+        global.setFlag(nameFlag, "global");
+        env.regionManager.addRegion(global);
+
+        ProtectedRegion low = createRegion("low", 0, 31, 0);
+        low.setFlag(levelFlag, 1);
+        low.setFlag(nameFlag, "low");
+        low.setFlag(accessFlag, StateFlag.State.ALLOW);
+
+        // Overrides only the level of the low region where they overlap
+        ProtectedRegion high = createRegion("high", 16, 47, 5);
+        high.setFlag(levelFlag, 2);
+
+        // Same priority as high, where both set access DENY wins
+        ProtectedRegion allow = createRegion("allow", 40, 63, 5);
+        allow.setFlag(accessFlag, StateFlag.State.ALLOW);
+        ProtectedRegion deny = createRegion("deny", 44, 55, 5);
+        deny.setFlag(accessFlag, StateFlag.State.DENY);
+
+        // Lower priority than the regions it overlaps, so its values only show past those
+        ProtectedRegion lowest = createRegion("lowest", 24, 79, -1);
+        lowest.setFlag(levelFlag, 3);
+        lowest.setFlag(nameFlag, "lowest");
+        lowest.setFlag(accessFlag, StateFlag.State.DENY);
+
+        assertWalkMatchesWorldGuard(walkAlongX(0, 90));
+    }
+
+    public void testParentChains() throws Exception {
+        ProtectedRegion grandparent = createRegion("grandparent", 0, 63, 0);
+        grandparent.setFlag(levelFlag, 1);
+        grandparent.setFlag(nameFlag, "grandparent");
+        grandparent.setFlag(accessFlag, StateFlag.State.DENY);
+
+        ProtectedRegion parent = createRegion("parent", 0, 47, 1);
+        parent.setParent(grandparent);
+        parent.setFlag(levelFlag, 2);
+
+        ProtectedRegion child = createRegion("child", 0, 31, 2);
+        child.setParent(parent);
+        child.setFlag(nameFlag, "child");
+
+        // Same priority as the parent region, sets access while the parent inherits it from grandparent
+        ProtectedRegion sibling = createRegion("sibling", 40, 55, 1);
+        sibling.setParent(grandparent);
+        sibling.setFlag(accessFlag, StateFlag.State.ALLOW);
+
+        // Lower priority than its own parent, which is skipped as a parent of regions visited before
+        ProtectedRegion lowChild = createRegion("low_child", 8, 23, -1);
+        lowChild.setParent(parent);
+        lowChild.setFlag(levelFlag, 5);
+
+        assertWalkMatchesWorldGuard(walkAlongX(0, 70));
+    }
+
+    public void testGlobalRegion() {
+        GlobalProtectedRegion global = new GlobalProtectedRegion(ProtectedRegion.GLOBAL_REGION);
+        global.setFlag(levelFlag, 7);
+        global.setFlag(nameFlag, "global");
+        global.setFlag(accessFlag, StateFlag.State.DENY);
+        global.setFlag(accessFlag.getRegionGroupFlag(), RegionGroup.NON_MEMBERS);
+        env.regionManager.addRegion(global);
+
+        // Sets only some flags, the others come from the global region
+        ProtectedRegion named = createRegion("named", 0, 31, 0);
+        named.setFlag(nameFlag, "named");
+
+        // Sets no flags at all
+        createRegion("empty", 32, 63, 0);
+
+        // Sets the level for members only, everyone else gets the level of the global region
+        ProtectedRegion membersOnly = createRegion("members_only", 64, 95, 0);
+        membersOnly.getMembers().addPlayer(SimulationEnvironment.getPlayerUUID(MEMBER));
+        membersOnly.setFlag(levelFlag, 8);
+        membersOnly.setFlag(levelFlag.getRegionGroupFlag(), RegionGroup.MEMBERS);
+
+        assertWalkMatchesWorldGuard(walkAlongX(0, 110));
+    }
+
+    public void testGroupFlagsOfMembersAndNonMembers() throws Exception {
+        GlobalProtectedRegion global = new GlobalProtectedRegion(ProtectedRegion.GLOBAL_REGION);
+        global.setFlag(levelFlag, 0);
+        env.regionManager.addRegion(global);
+
+        ProtectedRegion district = createRegion("district", 0, 63, 0);
+        district.setFlag(levelFlag, 20);
+        district.setFlag(levelFlag.getRegionGroupFlag(), RegionGroup.NON_MEMBERS);
+        district.setFlag(accessFlag, StateFlag.State.DENY);
+
+        ProtectedRegion plot = createRegion("plot", 0, 31, 1);
+        plot.setParent(district);
+        plot.getMembers().addPlayer(SimulationEnvironment.getPlayerUUID(MEMBER));
+        plot.setFlag(levelFlag, 10);
+        plot.setFlag(levelFlag.getRegionGroupFlag(), RegionGroup.MEMBERS);
+        plot.setFlag(nameFlag, "visitors");
+        plot.setFlag(nameFlag.getRegionGroupFlag(), RegionGroup.NON_MEMBERS);
+        plot.setFlag(accessFlag, StateFlag.State.ALLOW);
+        plot.setFlag(accessFlag.getRegionGroupFlag(), RegionGroup.MEMBERS);
+
+        // Has no members itself, members of the plot are members of this region through its parent
+        ProtectedRegion house = createRegion("house", 8, 15, 2);
+        house.setParent(plot);
+        house.setFlag(levelFlag, 30);
+        house.setFlag(levelFlag.getRegionGroupFlag(), RegionGroup.MEMBERS);
+        house.setFlag(nameFlag, "owners");
+        house.setFlag(nameFlag.getRegionGroupFlag(), RegionGroup.OWNERS);
+
+        // Overlaps the plot at the same priority, does not have the plot as parent
+        ProtectedRegion market = createRegion("market", 24, 47, 1);
+        market.setFlag(nameFlag, "market");
+        market.setFlag(nameFlag.getRegionGroupFlag(), RegionGroup.NON_MEMBERS);
+        market.setFlag(accessFlag, StateFlag.State.ALLOW);
+        market.setFlag(accessFlag.getRegionGroupFlag(), RegionGroup.NON_MEMBERS);
+
+        assertWalkMatchesWorldGuard(walkAlongX(0, 70));
+    }
+
+    /**
+     * Creates a region that spans the full height of the world and 16 blocks along z, and adds it
+     *
+     * @param id Region id
+     * @param minX Lowest x-coordinate of the region
+     * @param maxX Highest x-coordinate of the region
+     * @param priority Region priority
+     * @return Region
+     */
+    private ProtectedRegion createRegion(String id, int minX, int maxX, int priority) {
+        ProtectedRegion region = new ProtectedCuboidRegion(id,
+                BlockVector3.at(minX, 0, 0), BlockVector3.at(maxX, 255, 15));
+        region.setPriority(priority);
+        env.regionManager.addRegion(region);
+        return region;
+    }
+
+    /**
+     * Creates a path that walks along x in the middle of the regions, one block every step
+     */
+    private static double[][] walkAlongX(int fromX, int toX) {
+        double[][] path = new double[toX - fromX + 1][];
+        for (int x = fromX; x <= toX; x++) {
+            path[x - fromX] = new double[] { x + 0.5, 64.0, 8.5 };
+        }
+        return path;
+    }
+
+    /**
+     * Walks a member player, a non-member player and an entity that is not a player along a path.
+     * At every step the values tracked for them must be the same as what WorldGuard queries for
+     * that player, or for no player for the entity.
+     *
+     * @param path Positions to walk along
+     */
+    private void assertWalkMatchesWorldGuard(double[][] path) {
+        final double[] position = path[0].clone();
+        final List<SimulationEnvironment.SimulatedPlayer> players = new ArrayList<>();
+        final List<RegionFlagTracker<?>[]> playerTrackers = new ArrayList<>();
+        for (int index : new int[] { MEMBER, NON_MEMBER }) {
+            SimulationEnvironment.SimulatedPlayer player = env.createPlayer(index, position);
+            RegionFlagTracker<?>[] trackers = new RegionFlagTracker<?>[] {
+                    RegionFlagTracker.track(player.player, LEVEL),
+                    RegionFlagTracker.track(player.player, NAME),
+                    RegionFlagTracker.track(player.player, ACCESS)
+            };
+            for (RegionFlagTracker<?> tracker : trackers) {
+                tracker.addListener(t -> {});
+            }
+            player.join();
+            players.add(player);
+            playerTrackers.add(trackers);
+        }
+
+        final Entity entity = env.createEntity(0, position);
+        final RegionFlagTracker<?>[] entityTrackers = new RegionFlagTracker<?>[] {
+                RegionFlagTracker.trackEntity(entity, LEVEL),
+                RegionFlagTracker.trackEntity(entity, NAME),
+                RegionFlagTracker.trackEntity(entity, ACCESS)
+        };
+        for (RegionFlagTracker<?> tracker : entityTrackers) {
+            tracker.addListener(t -> {});
+        }
+
+        for (int step = 0; step < path.length; step++) {
+            System.arraycopy(path[step], 0, position, 0, position.length);
+            for (SimulationEnvironment.SimulatedPlayer player : players) {
+                player.move();
+            }
+            env.runTick();
+
+            final ApplicableRegionSet set = players.get(0).getApplicableRegions();
+            final String context = getName() + " at " + Arrays.toString(position);
+            for (int i = 0; i < players.size(); i++) {
+                assertValues(context + ", player " + i, set, players.get(i).localPlayer, playerTrackers.get(i));
+            }
+            assertValues(context + ", entity", set, null, entityTrackers);
+        }
+    }
+
+    private void assertValues(String context, ApplicableRegionSet set, RegionAssociable associable, RegionFlagTracker<?>[] trackers) {
+        final StateFlag.State expectedAccess = set.queryValue(associable, accessFlag);
+        assertEquals(context + ": " + LEVEL.name(), set.queryValue(associable, levelFlag), trackers[0].getValue().orElse(null));
+        assertEquals(context + ": " + NAME.name(), set.queryValue(associable, nameFlag), trackers[1].getValue().orElse(null));
+        assertEquals(context + ": " + ACCESS.name(), (expectedAccess == null) ? null : expectedAccess.name(),
+                trackers[2].getValue().map(state -> ((RegionFlag.State) state).name()).orElse(null));
+    }
+}
@@ -0,0 +1,391 @@
+package com.bergerkiller.bukkit.common.regionflagtracker;
+
+import com.sk89q.worldedit.math.BlockVector3;
+import com.sk89q.worldguard.WorldGuard;
+import com.sk89q.worldguard.protection.ApplicableRegionSet;
+import com.sk89q.worldguard.protection.association.RegionAssociable;
+import com.sk89q.worldguard.protection.flags.Flag;
+import com.sk89q.worldguard.protection.flags.Flags;
+import com.sk89q.worldguard.protection.flags.RegionGroup;
+import com.sk89q.worldguard.protection.flags.StateFlag;
+import com.sk89q.worldguard.protection.regions.GlobalProtectedRegion;
+import com.sk89q.worldguard.protection.regions.ProtectedCuboidRegion;
+import com.sk89q.worldguard.protection.regions.ProtectedRegion;
+import junit.framework.TestCase;
+import org.bukkit.entity.Entity;
+import org.bukkit.plugin.Plugin;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Drives the WorldGuard registry offline: players walk through nested regions while staff edit
+ * the flags of those regions. Reports the throughput and tail latency of boundary handling
+ * and of the ticks, and verifies afterwards that every tracked value matches what WorldGuard
+ * itself queries.<br>
+ * <br>
+ * Players have a stand-in WorldGuard session that calls the session handler of the registry
+ * when they cross region boundaries. Players are members of some of the plots, and some flags
+ * only apply to members or non-members. A few entities that are not players walk around too,
+ * which the registry checks for movement every tick.
+ */
+public class LoadSimulationTest extends TestCase {
+    private static final Logger LOGGER = Logger.getLogger(LoadSimulationTest.class.getName());
+    private static final int PLAYERS = 500;
+    private static final int ENTITIES = 50;
+    private static final int WALKERS = PLAYERS + ENTITIES;
+    private static final int DISTRICTS_PER_AXIS = 4;
+    private static final int DISTRICT_SIZE = 256;
+    private static final int PLOTS_PER_AXIS = 4;
+    private static final int PLOT_SIZE = DISTRICT_SIZE / PLOTS_PER_AXIS;
+    private static final int WORLD_SIZE = DISTRICTS_PER_AXIS * DISTRICT_SIZE;
+    /** Every player is a member of one in this many plots */
+    private static final int PLOT_MEMBERSHIP_RATIO = 16;
+    private static final int WARMUP_TICKS = 200;
+    private static final int TICKS_PER_PHASE = 600;
+    private static final int EDITS_PER_TICK = 5;
+    /** Blocks walked per tick, about the walking speed of a player */
+    private static final double WALK_SPEED = 0.22;
+
+    private static final RegionFlag.OfInteger LEVEL = RegionFlag.OfInteger.create("simulation-level");
+    private static final RegionFlag<String> NAME = RegionFlag.ofString("simulation-name");
+    private static final RegionFlag.OfState ACCESS = RegionFlag.OfState.create("simulation-access");
+    private static final RegionFlag.OfBoolean LIT = RegionFlag.OfBoolean.create("simulation-lit");
+
+    private final Random random = new Random(0x5EED);
+    private SimulationEnvironment env;
+    private RegionFlagRegistryBaseImpl registry;
+    private Flag<Integer> levelFlag;
+    private Flag<String> nameFlag;
+    private Flag<StateFlag.State> accessFlag;
+    private Flag<Boolean> litFlag;
+    private final List<ProtectedRegion> editableRegions = new ArrayList<>();
+    private double[][] positions;
+    private double[][] directions;
+    /** Simulated players, the first {@link #PLAYERS} walkers */
+    private List<SimulationEnvironment.SimulatedPlayer> players;
+    /** Subject flags are queried for by every walker, null for entities */
+    private RegionAssociable[] associables;
+    private List<RegionFlagTracker<?>[]> trackers;
+    private long valueChanges = 0;
+
+    @SuppressWarnings("unchecked")
+    public void testWalkersInNestedRegionsWithFlagEdits() throws Exception {
+        env = SimulationEnvironment.init();
+        registry = (RegionFlagRegistryBaseImpl) RegionFlagRegistry.instance();
+        assertTrue("WorldGuard registry is not used", registry instanceof RegionFlagRegistryWorldGuard);
+
+        // Like in onLoad()
+        Plugin plugin = SimulationEnvironment.createPlugin("Simulation", false);
+        registry.registerAll(plugin, LEVEL, NAME, ACCESS, LIT);
+        levelFlag = (Flag<Integer>) WorldGuard.getInstance().getFlagRegistry().get(LEVEL.name());
+        nameFlag = (Flag<String>) WorldGuard.getInstance().getFlagRegistry().get(NAME.name());
+        accessFlag = (Flag<StateFlag.State>) WorldGuard.getInstance().getFlagRegistry().get(ACCESS.name());
+        litFlag = (Flag<Boolean>) WorldGuard.getInstance().getFlagRegistry().get(LIT.name());
+        assertNotNull("Level flag has no region group flag", levelFlag.getRegionGroupFlag());
+        assertNotNull("Access flag has no region group flag", accessFlag.getRegionGroupFlag());
+
+        registry.enable(env.libraryPlugin);
+        registry.setMetricsEnabled(true);
+        try {
+            createRegions();
+            spawnWalkers();
+            verifyValues("spawn");
+
+            runPhase("warmup", WARMUP_TICKS, true, EDITS_PER_TICK, false);
+            registry.setMetricsEnabled(false);
+            registry.setMetricsEnabled(true);
+
+            runPhase("movement", TICKS_PER_PHASE, true, 0, true);
+            verifyValues("movement");
+            runPhase("flag edits", TICKS_PER_PHASE, false, EDITS_PER_TICK, true);
+            verifyValues("flag edits");
+            runPhase("movement and flag edits", TICKS_PER_PHASE, true, EDITS_PER_TICK, true);
+            verifyValues("movement and flag edits");
+
+            LOGGER.info("Value changes seen by listeners: " + valueChanges);
+            LOGGER.info(registry.getMetrics().toString());
+            assertTrue("Listeners were never called", valueChanges > 0);
+        } finally {
+            registry.disable();
+            env.cancelTasks();
+        }
+    }
+
+    private void createRegions() throws Exception {
+        GlobalProtectedRegion global = new GlobalProtectedRegion(ProtectedRegion.GLOBAL_REGION);
+        global.setFlag(levelFlag, 0);
+        env.regionManager.addRegion(global);
+
+        // Districts, divided into plots, with a small lit square at the center of every plot
+        int index = 0;
+        int plotIndex = 0;
+        for (int dx = 0; dx < DISTRICTS_PER_AXIS; dx++) {
+            for (int dz = 0; dz < DISTRICTS_PER_AXIS; dz++) {
+                final int districtX = dx * DISTRICT_SIZE;
+                final int districtZ = dz * DISTRICT_SIZE;
+                ProtectedRegion district = new ProtectedCuboidRegion("district_" + dx + "_" + dz,
+                        BlockVector3.at(districtX, 0, districtZ),
+                        BlockVector3.at(districtX + DISTRICT_SIZE - 1, 255, districtZ + DISTRICT_SIZE - 1));
+                district.setFlag(levelFlag, 10 + index++);
+                district.setFlag(accessFlag, ((dx + dz) & 1) == 0 ? StateFlag.State.ALLOW : StateFlag.State.DENY);
+                if ((dx & 1) == 0) {
+                    // Only denies access to the members of the plots inside, which are members of the district too
+                    district.setFlag(accessFlag.getRegionGroupFlag(), RegionGroup.NON_MEMBERS);
+                }
+                env.regionManager.addRegion(district);
+                editableRegions.add(district);
+
+                // A road through the middle of the district with passthrough set. Passthrough only
+                // affects membership, the flags it sets still apply like for any other region.
+                ProtectedRegion road = new ProtectedCuboidRegion(district.getId() + "_road",
+                        BlockVector3.at(districtX, 0, districtZ + DISTRICT_SIZE / 2 - 4),
+                        BlockVector3.at(districtX + DISTRICT_SIZE - 1, 255, districtZ + DISTRICT_SIZE / 2 + 3));
+                road.setPriority(3);
+                road.setParent(district);
+                road.setFlag(Flags.PASSTHROUGH, StateFlag.State.ALLOW);
+                road.setFlag(nameFlag, road.getId());
+                env.regionManager.addRegion(road);
+                editableRegions.add(road);
+
+                for (int px = 0; px < PLOTS_PER_AXIS; px++) {
+                    for (int pz = 0; pz < PLOTS_PER_AXIS; pz++) {
+                        final int plotX = districtX + px * PLOT_SIZE;
+                        final int plotZ = districtZ + pz * PLOT_SIZE;
+                        ProtectedRegion plot = new ProtectedCuboidRegion(district.getId() + "_plot_" + px + "_" + pz,
+                                BlockVector3.at(plotX, 0, plotZ),
+                                BlockVector3.at(plotX + PLOT_SIZE - 1, 255, plotZ + PLOT_SIZE - 1));
+                        plot.setPriority(1);
+                        plot.setParent(district);
+                        plot.setFlag(nameFlag, plot.getId());
+                        if (((px + pz) & 1) == 0) {
+                            plot.setFlag(levelFlag, 100 + index++);
+                            if ((px & 1) == 0) {
+                                plot.setFlag(levelFlag.getRegionGroupFlag(), RegionGroup.MEMBERS);
+                            }
+                        }
+                        for (int player = plotIndex % PLOT_MEMBERSHIP_RATIO; player < PLAYERS; player += PLOT_MEMBERSHIP_RATIO) {
+                            plot.getMembers().addPlayer(SimulationEnvironment.getPlayerUUID(player));
+                        }
+                        plotIndex++;
+                        env.regionManager.addRegion(plot);
+                        editableRegions.add(plot);
+
+                        final int centerX = plotX + PLOT_SIZE / 2;
+                        final int centerZ = plotZ + PLOT_SIZE / 2;
+                        ProtectedRegion center = new ProtectedCuboidRegion(plot.getId() + "_center",
+                                BlockVector3.at(centerX - 8, 0, centerZ - 8),
+                                BlockVector3.at(centerX + 7, 255, centerZ + 7));
+                        center.setPriority(2);
+                        center.setParent(plot);
+                        center.setFlag(litFlag, Boolean.TRUE);
+                        env.regionManager.addRegion(center);
+                    }
+                }
+            }
+        }
+    }
+
+    private void spawnWalkers() {
+        positions = new double[WALKERS][];
+        directions = new double[WALKERS][];
+        players = new ArrayList<>(PLAYERS);
+        associables = new RegionAssociable[WALKERS];
+        trackers = new ArrayList<>(WALKERS);
+        for (int i = 0; i < WALKERS; i++) {
+            positions[i] = new double[] { random.nextDouble() * WORLD_SIZE, 64.0, random.nextDouble() * WORLD_SIZE };
+            directions[i] = randomDirection();
+
+            final RegionFlagTracker<?>[] walkerTrackers;
+            if (i < PLAYERS) {
+                SimulationEnvironment.SimulatedPlayer player = env.createPlayer(i, positions[i]);
+                player.join();
+                players.add(player);
+                associables[i] = player.localPlayer;
+                walkerTrackers = new RegionFlagTracker<?>[] {
+                        RegionFlagTracker.track(player.player, LEVEL),
+                        RegionFlagTracker.track(player.player, NAME),
+                        RegionFlagTracker.track(player.player, ACCESS),
+                        RegionFlagTracker.track(player.player, LIT)
+                };
+            } else {
+                Entity entity = env.createEntity(i, positions[i]);
+                walkerTrackers = new RegionFlagTracker<?>[] {
+                        RegionFlagTracker.trackEntity(entity, LEVEL),
+                        RegionFlagTracker.trackEntity(entity, NAME),
+                        RegionFlagTracker.trackEntity(entity, ACCESS),
+                        RegionFlagTracker.trackEntity(entity, LIT)
+                };
+            }
+            for (RegionFlagTracker<?> tracker : walkerTrackers) {
+                tracker.addListener(t -> valueChanges++);
+            }
+            trackers.add(walkerTrackers);
+        }
+    }
+
+    private void runPhase(String name, int ticks, boolean move, int editsPerTick, boolean report) {
+        final long[] tickNanos = new long[ticks];
+        long[] crossingNanos = new long[1024];
+        int crossings = 0;
+        long totalCrossingNanos = 0;
+        long blockMoves = 0;
+        long edits = 0;
+        for (int tick = 0; tick < ticks; tick++) {
+            if (move) {
+                blockMoves += moveEntities();
+
+                // Players tell their session about the move right away, like WorldGuard does
+                for (int i = 0; i < PLAYERS; i++) {
+                    movePosition(i);
+                    final long startTime = System.nanoTime();
+                    if (players.get(i).move()) {
+                        final long nanos = System.nanoTime() - startTime;
+                        if (crossings == crossingNanos.length) {
+                            crossingNanos = Arrays.copyOf(crossingNanos, crossings * 2);
+                        }
+                        crossingNanos[crossings++] = nanos;
+                        totalCrossingNanos += nanos;
+                        blockMoves++;
+                    }
+                }
+            }
+            for (int i = 0; i < editsPerTick; i++) {
+                editRandomFlag();
+                edits++;
+            }
+
+            final long startTime = System.nanoTime();
+            env.runTick();
+            tickNanos[tick] = System.nanoTime() - startTime;
+        }
+
+        if (report) {
+            long totalTickNanos = 0;
+            for (long nanos : tickNanos) {
+                totalTickNanos += nanos;
+            }
+            Arrays.sort(tickNanos);
+            final double seconds = Math.max(totalTickNanos + totalCrossingNanos, 1L) / 1e9;
+            final StringBuilder message = new StringBuilder();
+            message.append(name).append(": ").append(ticks).append(" ticks");
+            message.append(", ").append(blockMoves).append(" block moves (").append(Math.round(blockMoves / seconds)).append("/s)");
+            message.append(", ").append(edits).append(" flag edits (").append(Math.round(edits / seconds)).append("/s)");
+            message.append(", tick p50=").append(micros(percentile(tickNanos, 50.0)));
+            message.append(" p99=").append(micros(percentile(tickNanos, 99.0)));
+            message.append(" p99.9=").append(micros(percentile(tickNanos, 99.9)));
+            message.append(" max=").append(micros(tickNanos[tickNanos.length - 1]));
+            if (crossings > 0) {
+                final long[] sortedCrossingNanos = Arrays.copyOf(crossingNanos, crossings);
+                Arrays.sort(sortedCrossingNanos);
+                message.append(", player block moves p50=").append(micros(percentile(sortedCrossingNanos, 50.0)));
+                message.append(" p99=").append(micros(percentile(sortedCrossingNanos, 99.0)));
+                message.append(" p99.9=").append(micros(percentile(sortedCrossingNanos, 99.9)));
+                message.append(" max=").append(micros(sortedCrossingNanos[crossings - 1]));
+            }
+            LOGGER.info(message.toString());
+            if (move) {
+                assertTrue("Players never moved to a different block during " + name, crossings > 0);
+            }
+        }
+    }
+
+    /**
+     * Moves all entities that are not players a bit, sometimes changing direction
+     *
+     * @return Number of entities that moved to a different block
+     */
+    private int moveEntities() {
+        int blockMoves = 0;
+        for (int i = PLAYERS; i < WALKERS; i++) {
+            if (movePosition(i)) {
+                blockMoves++;
+            }
+        }
+        return blockMoves;
+    }
+
+    /**
+     * Moves a walker a bit, sometimes changing direction
+     *
+     * @param i Index of the walker
+     * @return True if the walker moved to a different block
+     */
+    private boolean movePosition(int i) {
+        final double[] position = positions[i];
+        double[] direction = directions[i];
+        if (random.nextInt(50) == 0) {
+            direction = directions[i] = randomDirection();
+        }
+        final int oldX = (int) Math.floor(position[0]);
+        final int oldZ = (int) Math.floor(position[2]);
+        position[0] += direction[0] * WALK_SPEED;
+        position[2] += direction[1] * WALK_SPEED;
+
+        // Turn around at the border of the world
+        if (position[0] < 0.0 || position[0] >= WORLD_SIZE) {
+            direction[0] = -direction[0];
+            position[0] = Math.max(0.0, Math.min(WORLD_SIZE - 0.001, position[0]));
+        }
+        if (position[2] < 0.0 || position[2] >= WORLD_SIZE) {
+            direction[1] = -direction[1];
+            position[2] = Math.max(0.0, Math.min(WORLD_SIZE - 0.001, position[2]));
+        }
+        return oldX != (int) Math.floor(position[0]) || oldZ != (int) Math.floor(position[2]);
+    }
+
+    private void editRandomFlag() {
+        final ProtectedRegion region = editableRegions.get(random.nextInt(editableRegions.size()));
+        final int edit = random.nextInt(5);
+        if (edit == 0) {
+            region.setFlag(levelFlag.getRegionGroupFlag(), random.nextBoolean() ? RegionGroup.MEMBERS : null);
+        } else if (edit < 3) {
+            region.setFlag(levelFlag, (random.nextInt(10) == 0) ? null : random.nextInt(1000));
+        } else {
+            region.setFlag(nameFlag, (random.nextInt(10) == 0) ? null : region.getId() + "#" + random.nextInt(1000));
+        }
+    }
+
+    private void verifyValues(String phase) {
+        // Let the registry catch up with the last changes. Changes are noticed within
+        // the maximum staleness even when the flags map of regions could not be hooked.
+        final int settleTicks = registry.getMaximumUpdateStaleness() + 1;
+        for (int tick = 0; tick < settleTicks; tick++) {
+            env.runTick();
+        }
+
+        for (int i = 0; i < WALKERS; i++) {
+            final double[] position = positions[i];
+            final ApplicableRegionSet set = env.regionManager.getApplicableRegions(BlockVector3.at(
+                    Math.floor(position[0]), Math.floor(position[1]), Math.floor(position[2])));
+            final RegionAssociable associable = associables[i];
+            final RegionFlagTracker<?>[] walkerTrackers = trackers.get(i);
+            final StateFlag.State expectedAccess = set.queryValue(associable, accessFlag);
+            final String context = "After " + phase + ", " + ((associable == null) ? "entity " : "player ") +
+                    i + " at " + Arrays.toString(position) + ": ";
+            assertEquals(context + LEVEL.name(), set.queryValue(associable, levelFlag), walkerTrackers[0].getValue().orElse(null));
+            assertEquals(context + NAME.name(), set.queryValue(associable, nameFlag), walkerTrackers[1].getValue().orElse(null));
+            assertEquals(context + ACCESS.name(), (expectedAccess == null) ? null : expectedAccess.name(),
+                    walkerTrackers[2].getValue().map(state -> ((RegionFlag.State) state).name()).orElse(null));
+            assertEquals(context + LIT.name(), set.queryValue(associable, litFlag), walkerTrackers[3].getValue().orElse(null));
+        }
+    }
+
+    private double[] randomDirection() {
+        final double angle = random.nextDouble() * 2.0 * Math.PI;
+        return new double[] { Math.cos(angle), Math.sin(angle) };
+    }
+
+    private static long percentile(long[] sorted, double percentile) {
+        final int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+
+    private static String micros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos) + "us";
+    }
+}
@@ -0,0 +1,411 @@
+package com.bergerkiller.bukkit.common.regionflagtracker;
+
+import com.sk89q.worldedit.bukkit.BukkitAdapter;
+import com.sk89q.worldedit.math.BlockVector3;
+import com.sk89q.worldguard.LocalPlayer;
+import com.sk89q.worldguard.WorldGuard;
+import com.sk89q.worldguard.bukkit.BukkitPlayer;
+import com.sk89q.worldguard.bukkit.WorldGuardPlugin;
+import com.sk89q.worldguard.internal.platform.WorldGuardPlatform;
+import com.sk89q.worldguard.protection.ApplicableRegionSet;
+import com.sk89q.worldguard.protection.managers.RegionManager;
+import com.sk89q.worldguard.protection.managers.index.HashMapIndex;
+import com.sk89q.worldguard.protection.managers.storage.MemoryRegionDatabase;
+import com.sk89q.worldguard.protection.regions.ProtectedRegion;
+import com.sk89q.worldguard.protection.regions.RegionContainer;
+import com.sk89q.worldguard.session.MoveType;
+import com.sk89q.worldguard.session.Session;
+import com.sk89q.worldguard.session.SessionManager;
+import com.sk89q.worldguard.session.handler.Handler;
+import org.bukkit.Bukkit;
+import org.bukkit.Location;
+import org.bukkit.Server;
+import org.bukkit.World;
+import org.bukkit.entity.Entity;
+import org.bukkit.entity.Player;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.plugin.PluginManager;
+import org.bukkit.scheduler.BukkitScheduler;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.logging.Logger;
+
+/**
+ * In-memory stand-in of a server with WorldGuard installed. WorldGuard's own classes are used
+ * for the regions, flags and players, only the platform (sessions, region container) and the server
+ * are replaced. Sessions of players are simulated by {@link SimulatedPlayer}, which calls the
+ * session handlers registered by the registry like WorldGuard does. The scheduler does not run on its own, the simulation runs the tasks scheduled
+ * every tick itself with {@link #runTick()}.
+ */
+final class SimulationEnvironment {
+    private static final Logger LOGGER = Logger.getLogger("RegionFlagTrackerSimulation");
+    private static SimulationEnvironment instance = null;
+    public final Plugin worldguardPlugin = createPlugin("WorldGuard", true);
+    public final Plugin libraryPlugin = createPlugin("BKCommonLib", true);
+    public final World world = createWorld("simulation_world");
+    public final RegionManager regionManager = new RegionManager(new MemoryRegionDatabase(),
+            new HashMapIndex.Factory(), WorldGuard.getInstance().getFlagRegistry());
+    /** WorldGuard world of {@link #world} */
+    public final com.sk89q.worldedit.world.World worldguardWorld = BukkitAdapter.adapt(world);
+    /** Tasks scheduled to run every tick */
+    private final List<Runnable> repeatingTasks = new ArrayList<>();
+    /** Session handler factories registered in the session manager */
+    private final List<Handler.Factory<? extends Handler>> handlerFactories = new ArrayList<>();
+    private final Map<UUID, Player> onlinePlayers = new HashMap<>();
+    private final SessionManager sessionManager;
+
+    private SimulationEnvironment() {
+        final PluginManager pluginManager = createStandIn(PluginManager.class, (name, args) -> {
+            if (name.equals("getPlugin") && "WorldGuard".equals(args[0])) {
+                return worldguardPlugin;
+            } else if (name.equals("getPlugins")) {
+                return new Plugin[] { worldguardPlugin, libraryPlugin };
+            } else {
+                return null;
+            }
+        });
+        final BukkitScheduler scheduler = createStandIn(BukkitScheduler.class, (name, args) -> {
+            if (name.equals("scheduleSyncRepeatingTask") && args[1] instanceof Runnable) {
+                repeatingTasks.add((Runnable) args[1]);
+                return repeatingTasks.size();
+            } else {
+                return null;
+            }
+        });
+        Bukkit.setServer(createStandIn(Server.class, (name, args) -> {
+            if (name.equals("getPluginManager")) {
+                return pluginManager;
+            } else if (name.equals("getScheduler")) {
+                return scheduler;
+            } else if (name.equals("isPrimaryThread")) {
+                return Boolean.TRUE; // The simulation runs on a single thread
+            } else if (name.equals("getPlayer") && args[0] instanceof UUID) {
+                return onlinePlayers.get(args[0]);
+            } else {
+                return null;
+            }
+        }));
+
+        sessionManager = createStandIn(SessionManager.class, (name, args) -> {
+            if (name.equals("registerHandler")) {
+                handlerFactories.add((Handler.Factory<?>) args[0]);
+                return Boolean.TRUE;
+            } else if (name.equals("unregisterHandler")) {
+                return handlerFactories.remove(args[0]);
+            } else {
+                return null;
+            }
+        });
+        final RegionContainer regionContainer = new SimulationRegionContainer();
+        WorldGuard.getInstance().setPlatform(createStandIn(WorldGuardPlatform.class, (name, args) -> {
+            if (name.equals("getSessionManager")) {
+                return sessionManager;
+            } else if (name.equals("getRegionContainer")) {
+                return regionContainer;
+            } else {
+                return null;
+            }
+        }));
+    }
+
+    /**
+     * Runs all the tasks scheduled to run every tick once, like the server does every tick
+     */
+    public void runTick() {
+        for (int i = 0; i < repeatingTasks.size(); i++) {
+            repeatingTasks.get(i).run();
+        }
+    }
+
+    /**
+     * Cancels all scheduled tasks, like the server does when the plugin that scheduled
+     * them disables. Should be called after the registry is disabled.
+     */
+    public void cancelTasks() {
+        repeatingTasks.clear();
+    }
+
+    /**
+     * Removes all regions of the simulated world, so that a test can start without any
+     */
+    public void clearRegions() {
+        for (String id : new ArrayList<>(regionManager.getRegions().keySet())) {
+            regionManager.removeRegion(id);
+        }
+    }
+
+    /**
+     * Installs the stand-in server and WorldGuard platform. Must be done before the
+     * registry is first used.
+     *
+     * @return environment
+     */
+    public static synchronized SimulationEnvironment init() {
+        if (instance == null) {
+            instance = new SimulationEnvironment();
+        }
+        return instance;
+    }
+
+    /**
+     * Creates a stand-in plugin
+     *
+     * @param name Plugin name
+     * @param enabled Whether the plugin is enabled
+     * @return Plugin
+     */
+    public static Plugin createPlugin(final String name, final boolean enabled) {
+        return createStandIn(Plugin.class, (method, args) -> {
+            if (method.equals("getName")) {
+                return name;
+            } else if (method.equals("isEnabled")) {
+                return enabled;
+            } else {
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Creates a stand-in entity at a position that can be changed
+     *
+     * @param index Unique index of the entity
+     * @param position Position of the entity, read every time its location is requested
+     * @return Entity
+     */
+    public Entity createEntity(final int index, final double[] position) {
+        return createWalker(Entity.class, "Walker" + index, new UUID(1L, index), position);
+    }
+
+    /**
+     * Creates a player that is online at a position that can be changed. The player has no
+     * session yet, until {@link SimulatedPlayer#join()} is called.
+     *
+     * @param index Unique index of the player
+     * @param position Position of the player, read every time its location is requested
+     * @return Simulated player
+     */
+    public SimulatedPlayer createPlayer(final int index, final double[] position) {
+        final Player player = createWalker(Player.class, "Player" + index, getPlayerUUID(index), position);
+        onlinePlayers.put(player.getUniqueId(), player);
+        return new SimulatedPlayer(player, position);
+    }
+
+    /**
+     * Gets the unique id of the player created with {@link #createPlayer(int, double[])}
+     *
+     * @param index Unique index of the player
+     * @return Player unique id
+     */
+    public static UUID getPlayerUUID(int index) {
+        return new UUID(2L, index);
+    }
+
+    private <T extends Entity> T createWalker(final Class<T> type, final String name, final UUID uuid, final double[] position) {
+        return createStandIn(type, (method, args) -> {
+            if (method.equals("getLocation")) {
+                final Location location = (args != null && args.length == 1 && args[0] != null)
+                        ? (Location) args[0] : new Location(world, 0.0, 0.0, 0.0);
+                location.setWorld(world);
+                location.setX(position[0]);
+                location.setY(position[1]);
+                location.setZ(position[2]);
+                return location;
+            } else if (method.equals("getWorld")) {
+                return world;
+            } else if (method.equals("getName")) {
+                return name;
+            } else if (method.equals("getUniqueId")) {
+                return uuid;
+            } else if (method.equals("isValid") || method.equals("isOnline")) {
+                return Boolean.TRUE;
+            } else {
+                return null;
+            }
+        });
+    }
+
+    private static World createWorld(final String name) {
+        final UUID uuid = UUID.nameUUIDFromBytes(name.getBytes());
+        return createStandIn(World.class, (method, args) -> {
+            if (method.equals("getName")) {
+                return name;
+            } else if (method.equals("getUID")) {
+                return uuid;
+            } else {
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Creates a stand-in implementation of an interface using a Proxy. Methods for which
+     * the handler returns null return the default value of the return type instead.
+     * Objects are only equal to themselves.
+     */
+    private static <T> T createStandIn(final Class<T> type, final StandInHandler handler) {
+        return type.cast(Proxy.newProxyInstance(SimulationEnvironment.class.getClassLoader(), new Class<?>[] { type },
+                (proxy, method, args) -> {
+                    final String name = method.getName();
+                    if (name.equals("equals") && args != null && args.length == 1) {
+                        return proxy == args[0];
+                    } else if (name.equals("hashCode") && args == null) {
+                        return System.identityHashCode(proxy);
+                    } else if (name.equals("toString") && args == null) {
+                        return type.getSimpleName() + "@" + Integer.toHexString(System.identityHashCode(proxy));
+                    }
+
+                    final Object result = handler.invoke(name, args);
+                    return (result != null) ? result : defaultValue(method.getReturnType());
+                }));
+    }
+
+    private static Object defaultValue(Class<?> type) {
+        if (type == boolean.class) {
+            return Boolean.FALSE;
+        } else if (type == int.class) {
+            return 0;
+        } else if (type == long.class) {
+            return 0L;
+        } else if (type == double.class) {
+            return 0.0;
+        } else if (type == float.class) {
+            return 0.0f;
+        } else if (type == short.class) {
+            return (short) 0;
+        } else if (type == byte.class) {
+            return (byte) 0;
+        } else if (type == char.class) {
+            return (char) 0;
+        } else if (type == Logger.class) {
+            return LOGGER;
+        } else if (type.isArray()) {
+            return Array.newInstance(type.getComponentType(), 0);
+        } else if (type == List.class || type == Collection.class) {
+            return Collections.emptyList();
+        } else if (type == Set.class) {
+            return Collections.emptySet();
+        } else if (type == Map.class) {
+            return Collections.emptyMap();
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     * Online player with a stand-in WorldGuard session. WorldGuard's own player wrapper is used,
+     * so that membership of regions is resolved by WorldGuard. When the player moves to another
+     * block, the session handlers are told what regions were entered and exited, like WorldGuard
+     * does for moving players.
+     */
+    public final class SimulatedPlayer {
+        public final Player player;
+        public final LocalPlayer localPlayer;
+        private final double[] position;
+        private final List<Handler> handlers = new ArrayList<>();
+        private com.sk89q.worldedit.util.Location lastLocation = null;
+        private Set<ProtectedRegion> lastRegions = Collections.emptySet();
+
+        private SimulatedPlayer(Player player, double[] position) {
+            this.player = player;
+            this.localPlayer = new BukkitPlayer((WorldGuardPlugin) null, player);
+            this.position = position;
+        }
+
+        /**
+         * Gets the regions at the current position of the player, like WorldGuard queries them
+         *
+         * @return Regions at the current position, including the global region
+         */
+        public ApplicableRegionSet getApplicableRegions() {
+            return regionManager.getApplicableRegions(BlockVector3.at(
+                    Math.floor(position[0]), Math.floor(position[1]), Math.floor(position[2])));
+        }
+
+        /**
+         * Creates the session of this player and initializes its handlers, like WorldGuard
+         * does when a player joins
+         */
+        public void join() {
+            final Session session = new Session(sessionManager);
+            for (Handler.Factory<? extends Handler> factory : handlerFactories) {
+                handlers.add(factory.create(session));
+            }
+            final ApplicableRegionSet set = getApplicableRegions();
+            lastLocation = currentLocation();
+            lastRegions = new HashSet<>(set.getRegions());
+            for (Handler handler : handlers) {
+                handler.initialize(localPlayer, lastLocation, set);
+            }
+        }
+
+        /**
+         * Tells the session handlers about the regions entered and exited since the last move,
+         * if the player moved to a different block. Should be called after the position changed.
+         *
+         * @return True if the player moved to a different block, and the handlers were called
+         */
+        public boolean move() {
+            final com.sk89q.worldedit.util.Location to = currentLocation();
+            if (to.getBlockX() == lastLocation.getBlockX() &&
+                to.getBlockY() == lastLocation.getBlockY() &&
+                to.getBlockZ() == lastLocation.getBlockZ()
+            ) {
+                return false;
+            }
+
+            final ApplicableRegionSet toSet = getApplicableRegions();
+            final Set<ProtectedRegion> toRegions = new HashSet<>(toSet.getRegions());
+            final Set<ProtectedRegion> entered = new HashSet<>(toRegions);
+            entered.removeAll(lastRegions);
+            final Set<ProtectedRegion> exited = new HashSet<>(lastRegions);
+            exited.removeAll(toRegions);
+            for (Handler handler : handlers) {
+                handler.onCrossBoundary(localPlayer, lastLocation, to, toSet, entered, exited, MoveType.MOVE);
+            }
+            lastLocation = to;
+            lastRegions = toRegions;
+            return true;
+        }
+
+        private com.sk89q.worldedit.util.Location currentLocation() {
+            return new com.sk89q.worldedit.util.Location(worldguardWorld, position[0], position[1], position[2]);
+        }
+    }
+
+    /**
+     * Region container of the stand-in WorldGuard platform. Only the simulated world has regions,
+     * which are never loaded from or saved to storage.
+     */
+    private final class SimulationRegionContainer extends RegionContainer {
+        @Override
+        public RegionManager get(com.sk89q.worldedit.world.World world) {
+            return world.getName().equals(SimulationEnvironment.this.world.getName()) ? regionManager : null;
+        }
+
+        public RegionManager load(com.sk89q.worldedit.world.World world) {
+            return get(world);
+        }
+
+        public void loadWorlds() {
+        }
+
+        public void autoMigrate() {
+        }
+    }
+
+    @FunctionalInterface
+    private interface StandInHandler {
+        Object invoke(String methodName, Object[] args);
+    }
+}